@@ -0,0 +1,47 @@
+/**
+ * Created on 17/10/2026.
+ *
+ * Immutable snapshot of the detection settings of the GUI, taken on the EDT before an analysis starts,
+ * so worker threads never read Swing components or fields of {@link Spheroid_RGB} that may change meanwhile.
+ */
+class Analysis_Parameters {
+
+    final int cellWidth;
+    final double minDist;
+    final boolean darkPeaks;
+    final int quantification;
+    final int parallelism;
+    private final int grayThreshold;
+    private final int redThreshold;
+    private final int greenThreshold;
+    private final int blueThreshold;
+
+    Analysis_Parameters(Spheroid_RGB main) {
+        this(main.cellWidth, main.minDist, main.darkPeaks, main.quantification, main.parallelism,
+                main.getThreshold(""), main.getThreshold("red"), main.getThreshold("green"), main.getThreshold("blue"));
+    }
+
+    // settings without the GUI, e.g. from the command line of Batch_Runner
+    Analysis_Parameters(int cellWidth, double minDist, boolean darkPeaks, int quantification, int parallelism,
+                        int grayThreshold, int redThreshold, int greenThreshold, int blueThreshold) {
+        this.cellWidth = cellWidth;
+        this.minDist = minDist;
+        this.darkPeaks = darkPeaks;
+        this.quantification = quantification;
+        this.parallelism = parallelism;
+        this.grayThreshold = grayThreshold;
+        this.redThreshold = redThreshold;
+        this.greenThreshold = greenThreshold;
+        this.blueThreshold = blueThreshold;
+    }
+
+    // same as Spheroid_RGB.getThreshold(s) at the time of the snapshot
+    int getThreshold(String s) {
+        switch (s) {
+            case "red": return redThreshold;
+            case "green": return greenThreshold;
+            case "blue": return blueThreshold;
+            default: return grayThreshold;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.PointRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.io.RoiDecoder;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Headless batch analysis of a folder of images, without the Swing form or the ROI Manager.
+ * The ROIs of image.tif are read from image.zip, image_RoiSet.zip or RoiSet_image.zip, or found by a magic
+ * select from the brightest (darkest) pixel if segment is set. Files are analyzed on a fixed pool of threads,
+ * the rows are streamed to CSV (TSV for out=*.tsv) in file order by a Result_Writer. With cache=folder
+ * the results of unchanged files are read from Result_Cache instead of being computed again.
+ *
+ * java -cp ij.jar:Spheroid_RGB.jar Batch_Runner dir=/data/spheroids width=15 min_dist=7.5 red=40 blue=30 channels=rb
+ *      measure=count,mean,area plot=star threads=8 segment
+ */
+class Batch_Runner {
+
+    private static final String USAGE = "usage: Batch_Runner dir=<image folder> [out=<csv>] [profiles=<csv>]"
+            + " [width=15] [min_dist=7.5] [threshold=0] [red=0] [green=0] [blue=0] [dark] [quantification=20]"
+            + " [channels=rgb] [measure=count,mean,area,id,ratio,values] [major=red]"
+            + " [plot=none|star|ring|hull|surface] [lines=3] [length=0] [diameter] [bounds]"
+            + " [segment] [tolerance=128] [threads=<cores>] [cache=<folder>]";
+
+    private final HashMap<String, String> options = new HashMap<>();
+    private Analysis_Parameters params;
+    private boolean[] measurements;
+    private String channels;
+    private String major;
+    private int plotMode;
+    private int lines;
+    private int length;
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        System.setProperty("java.awt.headless", "true");
+        Batch_Runner runner = new Batch_Runner(args);
+        try {
+            runner.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // arguments are key=value pairs or flags
+    Batch_Runner(String[] args) {
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i < 0) options.put(arg.toLowerCase(), "true");
+            else options.put(arg.substring(0, i).toLowerCase(), arg.substring(i + 1));
+        }
+    }
+
+    private String get(String key, String defaultValue) {
+        String value = options.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return Integer.parseInt(get(key, String.valueOf(defaultValue)));
+    }
+
+    private boolean isSet(String key) {
+        return Boolean.parseBoolean(get(key, "false"));
+    }
+
+    void run() throws IOException, InterruptedException {
+        File dir = new File(get("dir", "."));
+        if (!dir.isDirectory()) throw new IllegalArgumentException("not a folder: " + dir);
+        File out = new File(get("out", new File(dir, "Spheroid_RGB results.csv").getPath()));
+        File profilesOut = new File(get("profiles", new File(dir, "Spheroid_RGB profiles.csv").getPath()));
+
+        int threshold = getInt("threshold", 0);
+        params = new Analysis_Parameters(getInt("width", 15), Double.parseDouble(get("min_dist", "7.5")), isSet("dark"),
+                getInt("quantification", 20), 1, threshold, getInt("red", threshold), getInt("green", threshold),
+                getInt("blue", threshold));
+
+        // same layout as the options of Table_Analyzer.run
+        String measure = "," + get("measure", "count,mean,area").toLowerCase() + ",";
+        measurements = new boolean[]{true, measure.contains(",count,"), measure.contains(",mean,"), measure.contains(",area,"),
+                measure.contains(",id,"), measure.contains(",ratio,"), measure.contains(",values,"), false};
+        channels = get("channels", "rgb").toLowerCase();
+        major = get("major", "red");
+
+        switch (get("plot", "none").toLowerCase()) {
+            case "star": plotMode = Multi_Plot.STAR_PLOT; break;
+            case "ring": plotMode = Multi_Plot.RING_PLOT; break;
+            case "hull": plotMode = Multi_Plot.CONVEX_HULL; break;
+            case "surface": plotMode = Multi_Plot.SURFACE_DISTANCE; break;
+            default: plotMode = -1;
+        }
+        lines = getInt("lines", 3);
+        length = getInt("length", 0);
+
+        // results of unchanged images, ROIs and settings are read from the cache folder of an earlier run
+        if (options.containsKey("cache")) Result_Cache.setDirectory(new File(get("cache", "")));
+
+        File[] files = dir.listFiles();
+        if (files == null) files = new File[0];
+        Arrays.sort(files);
+
+        int threads = Math.max(1, getInt("threads", Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // one writer per column layout, so files with other channels or units don't lose values
+        LinkedHashMap<List<String>, Result_Writer> writers = new LinkedHashMap<>();
+        LinkedHashMap<List<String>, Result_Writer> profileWriters = new LinkedHashMap<>();
+        try {
+            // a window of files in flight, so finished results wait for at most a few slower ones
+            ArrayDeque<Future<File_Result>> pending = new ArrayDeque<>();
+            ArrayDeque<File> pendingFiles = new ArrayDeque<>();
+            int next = 0;
+            while (next < files.length || !pending.isEmpty()) {
+                while (next < files.length && pending.size() < 2 * threads) {
+                    final File file = files[next++];
+                    if (!isImage(file)) continue;
+                    pending.add(executor.submit(new Callable<File_Result>() {
+                        @Override
+                        public File_Result call() throws IOException {
+                            return analyze(file);
+                        }
+                    }));
+                    pendingFiles.add(file);
+                }
+                if (pending.isEmpty()) continue;
+
+                // rows in file order, a file that fails is logged and skipped
+                File file = pendingFiles.poll();
+                File_Result result;
+                try {
+                    result = pending.poll().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    IJ.log("skipped " + file.getName() + ": " + cause);
+                    continue;
+                }
+                if (result == null) continue;
+                result.rows.writeTo(writer(writers, out, new String[]{"Image", "ROI"}, result.columns));
+                if (result.profiles != null) {
+                    result.profiles.writeTo(writer(profileWriters, profilesOut, new String[]{"Plot"}, result.profileColumns));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            close(writers, out);
+            close(profileWriters, profilesOut);
+        }
+    }
+
+    /**
+     * Writer of the column layout, file for the first layout and file-2, file-3 .. for each other one
+     * (e.g. gray and RGB images, calibrated and uncalibrated ones).
+     */
+    private static Result_Writer writer(LinkedHashMap<List<String>, Result_Writer> writers, File file, String[] labels, String[] columns)
+            throws IOException {
+        List<String> layout = Arrays.asList(columns);
+        Result_Writer writer = writers.get(layout);
+        if (writer == null) {
+            File target = numbered(file, writers.size() + 1);
+            if (!writers.isEmpty()) IJ.log("other columns than " + file.getName() + ", rows written to " + target.getName());
+            writer = new Result_Writer(target, labels, columns);
+            writers.put(layout, writer);
+        }
+        return writer;
+    }
+
+    // file itself for 1, name-n.ext otherwise
+    private static File numbered(File file, int n) {
+        if (n == 1) return file;
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String numbered = dot > 0 ? name.substring(0, dot) + "-" + n + name.substring(dot) : name + "-" + n;
+        return new File(file.getParentFile(), numbered);
+    }
+
+    private static void close(LinkedHashMap<List<String>, Result_Writer> writers, File file) throws IOException {
+        int n = 1;
+        for (Result_Writer writer : writers.values()) {
+            writer.close();
+            IJ.log(writer.size() + " rows written to " + numbered(file, n++));
+        }
+    }
+
+    // rows of one file and their layout
+    private static class File_Result {
+        Result_Rows rows;
+        String[] columns;
+        Result_Rows profiles;        // null without plot
+        String[] profileColumns;
+    }
+
+    private static boolean isImage(File file) {
+        String name = file.getName().toLowerCase();
+        return file.isFile() && !name.startsWith(".") && !name.endsWith(".zip") && !name.endsWith(".roi")
+                && !name.endsWith(".csv") && !name.endsWith(".tsv") && !name.endsWith(".txt") && !name.endsWith(".xls");
+    }
+
+    // rows of the analysis and of the profiles, null if the file is skipped
+    private File_Result analyze(File file) throws IOException {
+        ImagePlus image = IJ.openImage(file.getPath());
+        if (image == null) {
+            IJ.log("skipped " + file.getName() + ": not an image");
+            return null;
+        }
+        try {
+            ArrayList<Channel_View> views = channels(image);
+            if (views.isEmpty()) {
+                IJ.log("skipped " + file.getName() + ": no channel to analyze in " + image.getBitDepth() + "-bit image");
+                return null;
+            }
+            Roi[] rois = readRois(file);
+            if (rois == null && isSet("segment")) rois = new Roi[]{segment(image)};
+            if (rois == null) {
+                IJ.log("skipped " + file.getName() + ": no RoiSet");
+                return null;
+            }
+
+            File_Result result = new File_Result();
+            ArrayList<String> titles = new ArrayList<>();
+            for (Channel_View view : views) titles.add(view.getTitle());
+            result.rows = new Result_Rows("Image", "ROI");
+            result.columns = Table_Analyzer.columns(titles, measurements, major, image.getCalibration());
+            new Table_Analyzer().measure(image, views, rois, params, measurements, major, result.rows);
+
+            if (plotMode >= 0) {
+                result.profiles = new Result_Rows("Plot");
+                result.profileColumns = Multi_Plot.columns(titles, plotMode, !isSet("diameter"), isSet("bounds"));
+                Multi_Plot multiPlot = new Multi_Plot();
+                for (Roi roi : rois) {
+                    if (roi.isArea()) multiPlot.measure(views, image, roi, lines, !isSet("diameter"), length, isSet("bounds"), plotMode, result.profiles);
+                }
+            }
+            return result;
+        } finally {
+            // the caches are of no use once the image is done
+            Response_Cache.invalidate(image);
+            Pixel_Range.invalidate(image);
+            Histogram_Cache.invalidate(image);
+            image.flush();
+        }
+    }
+
+    // the gray image, or the selected channels of an RGB image
+    private ArrayList<Channel_View> channels(ImagePlus image) {
+        ArrayList<Channel_View> views = new ArrayList<>();
+        switch (image.getType()) {
+            case ImagePlus.GRAY8:
+            case ImagePlus.GRAY16:
+            case ImagePlus.GRAY32:
+                views.add(new Channel_View(image));
+                break;
+            case ImagePlus.COLOR_RGB:
+                Channel_View[] rgb = Channel_View.rgb(image);
+                if (channels.indexOf('r') >= 0) views.add(rgb[0]);
+                if (channels.indexOf('g') >= 0) views.add(rgb[1]);
+                if (channels.indexOf('b') >= 0) views.add(rgb[2]);
+                break;
+        }
+        return views;
+    }
+
+    // ROIs of image.zip, image_RoiSet.zip, RoiSet_image.zip or image.roi, null if there is none
+    private static Roi[] readRois(File image) throws IOException {
+        String name = image.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        File dir = image.getParentFile();
+        for (String candidate : new String[]{base + ".zip", base + "_RoiSet.zip", "RoiSet_" + base + ".zip"}) {
+            File zip = new File(dir, candidate);
+            if (zip.isFile()) return readZip(zip);
+        }
+        File roiFile = new File(dir, base + ".roi");
+        if (roiFile.isFile()) {
+            Roi roi = RoiDecoder.open(roiFile.getPath());
+            if (roi != null) return new Roi[]{roi};
+        }
+        return null;
+    }
+
+    // same as RoiManager.openZip without the ROI Manager
+    private static Roi[] readZip(File zip) throws IOException {
+        ArrayList<Roi> rois = new ArrayList<>();
+        try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(zip)))) {
+            byte[] buffer = new byte[8192];
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (!name.endsWith(".roi")) continue;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                int n;
+                while ((n = in.read(buffer)) > 0) bytes.write(buffer, 0, n);
+                Roi roi = new RoiDecoder(bytes.toByteArray(), name).getRoi();
+                if (roi == null) continue;
+                if (roi.getName() == null) roi.setName(name.substring(0, name.length() - 4));
+                rois.add(roi);
+            }
+        }
+        return rois.isEmpty() ? null : rois.toArray(new Roi[rois.size()]);
+    }
+
+    // magic select (8-connected wand) from the brightest pixel, the darkest for dark peaks
+    private Roi segment(ImagePlus image) {
+        PointRoi seed = params.darkPeaks ? Spheroid_RGB.findMinSeed(image) : Spheroid_RGB.findMaxSeed(image);
+        Wand wand = new Wand(image.getProcessor());
+        wand.autoOutline((int) seed.getXBase(), (int) seed.getYBase(), Double.parseDouble(get("tolerance", "128")), Wand.EIGHT_CONNECTED);
+        Roi roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.TRACED_ROI);
+        roi.setName("auto");
+        return roi;
+    }
+}
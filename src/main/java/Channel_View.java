@@ -0,0 +1,155 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.awt.*;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * One channel of an image without a copy of its pixels: a gray image itself, or the red, green or blue
+ * byte of the packed int[] pixels of an RGB image. Replaces ChannelSplitter.split for the analysis,
+ * a copy is only made by {@link #toImagePlus()} when a channel is displayed.
+ */
+class Channel_View {
+
+    static final int GRAY = -1;
+    static final int RED = 0;
+    static final int GREEN = 1;
+    static final int BLUE = 2;
+
+    private static final String[] TITLES = {"red", "green", "blue"};
+    private static final Color[] COLORS = {Color.RED, Color.GREEN, Color.BLUE};
+
+    final ImagePlus image;
+    final int channel;
+
+    // gray image
+    Channel_View(ImagePlus image) {
+        this(image, GRAY);
+    }
+
+    Channel_View(ImagePlus image, int channel) {
+        this.image = image;
+        this.channel = channel;
+    }
+
+    // views of the red, green and blue channel of an RGB image
+    static Channel_View[] rgb(ImagePlus image) {
+        return new Channel_View[]{new Channel_View(image, RED), new Channel_View(image, GREEN), new Channel_View(image, BLUE)};
+    }
+
+    // "red", "green" and "blue" like the images of ChannelSplitter, the image title for gray images
+    String getTitle() {
+        return channel == GRAY ? image.getTitle() : TITLES[channel];
+    }
+
+    // processor of the stack slice the ROI belongs to, the packed RGB processor for color channels
+    ImageProcessor getProcessor(Roi roi) {
+        return Nuclei_Counter.processor(image, roi);
+    }
+
+    // stack slice the ROI belongs to
+    int getSlice(Roi roi) {
+        return Nuclei_Counter.slice(image, roi);
+    }
+
+    Pixel_Range range(ImageProcessor ip) {
+        return Pixel_Range.of(ip, channel);
+    }
+
+    // same as ImageProcessor.getPixelValue on the split channel, 0 outside of the image
+    float getPixelValue(ImageProcessor ip, int x, int y) {
+        if (channel == GRAY) return ip.getPixelValue(x, y);
+        if (x < 0 || y < 0 || x >= ip.getWidth() || y >= ip.getHeight()) return 0f;
+        return 0xff & (((int[]) ip.getPixels())[y * ip.getWidth() + x] >> (16 - 8 * channel));
+    }
+
+    /**
+     * Same as ImageProcessor.getLine on the split channel: n samples along the line, bilinear interpolated
+     * (and edge clamped within one pixel of the border) if interpolate is set, nearest pixel otherwise.
+     */
+    double[] getLine(ImageProcessor ip, double x1, double y1, double x2, double y2, boolean interpolate) {
+        if (channel == GRAY) {
+            ip.setInterpolate(interpolate);
+            return ip.getLine(x1, y1, x2, y2);
+        }
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        int n = (int) Math.round(Math.sqrt(dx * dx + dy * dy));
+        double xinc = dx / n;
+        double yinc = dy / n;
+        if (!((xinc == 0 && n == height) || (yinc == 0 && n == width))) n++;
+
+        double[] data = new double[n];
+        double rx = x1;
+        double ry = y1;
+        for (int i = 0; i < n; i++) {
+            data[i] = getLineValue(ip, rx, ry, interpolate);
+            rx += xinc;
+            ry += yinc;
+        }
+        return data;
+    }
+
+    // one sample of getLine at (x, y)
+    double getLineValue(ImageProcessor ip, double x, double y, boolean interpolate) {
+        if (channel == GRAY) return interpolate ? ip.getInterpolatedValue(x, y) : ip.getPixelValue((int) (x + 0.5), (int) (y + 0.5));
+        if (interpolate) return getInterpolatedValue(ip, x, y);
+        return getPixelValue(ip, (int) (x + 0.5), (int) (y + 0.5));
+    }
+
+    // ImageProcessor.getInterpolatedValue (bilinear) on the split channel
+    private double getInterpolatedValue(ImageProcessor ip, double x, double y) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        boolean edge = x < 0 || x >= width - 1 || y < 0 || y >= height - 1;
+        if (edge && (x < -1 || x >= width || y < -1 || y >= height)) return 0;
+
+        int xbase = (int) x;
+        int ybase = (int) y;
+        double xFraction = x - xbase;
+        double yFraction = y - ybase;
+        if (xFraction < 0) xFraction = 0;
+        if (yFraction < 0) yFraction = 0;
+        double lowerLeft = getValue(ip, xbase, ybase, edge);
+        double lowerRight = getValue(ip, xbase + 1, ybase, edge);
+        double upperRight = getValue(ip, xbase + 1, ybase + 1, edge);
+        double upperLeft = getValue(ip, xbase, ybase + 1, edge);
+        double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+        double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+        return lowerAverage + yFraction * (upperAverage - lowerAverage);
+    }
+
+    // pixel value, clamped to the image near the border
+    private float getValue(ImageProcessor ip, int x, int y, boolean edge) {
+        if (edge) {
+            if (x <= 0) x = 0;
+            if (x >= ip.getWidth()) x = ip.getWidth() - 1;
+            if (y <= 0) y = 0;
+            if (y >= ip.getHeight()) y = ip.getHeight() - 1;
+        }
+        return getPixelValue(ip, x, y);
+    }
+
+    // the gray image itself, or an 8-bit copy of the channel with a matching LUT for display
+    ImagePlus toImagePlus() {
+        if (channel == GRAY) return image;
+
+        ImageStack stack = image.getStack();
+        ImageStack copy = new ImageStack(image.getWidth(), image.getHeight());
+        for (int i = 1; i <= stack.getSize(); i++) {
+            ColorProcessor cp = (ColorProcessor) stack.getProcessor(i);
+            copy.addSlice(stack.getSliceLabel(i), cp.getChannel(channel + 1, null));
+        }
+        ImagePlus imp = new ImagePlus(getTitle(), copy);
+        imp.setCalibration(image.getCalibration());
+        imp.setLut(LUT.createLutFromColor(COLORS[channel]));
+        return imp;
+    }
+}
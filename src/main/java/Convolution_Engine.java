@@ -0,0 +1,474 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Convolution of an image with the LoG kernel of {@link Nuclei_Counter}.
+ * Pixels outside the image count as zero, exactly like the direct convolution it replaces.
+ *
+ * Two methods are available and chosen by kernel width:
+ * SEPARABLE splits the kernel into three rank-1 terms (two Gaussian-derivative products and a
+ * constant offset) and runs 1D passes, O(w*h*width).
+ * FFT convolves overlapping tiles in the frequency domain (overlap-save), O(w*h*log(tile)).
+ *
+ * Sums are accumulated in double, the response is stored as float.
+ * Tolerance: before the conversion to float, both methods match the direct convolution with the
+ * kernel from findKernel() to within TOLERANCE times the sum of absolute kernel weights times the
+ * largest input value (measured differences are around 1e-13, i.e. floating point rounding only).
+ *
+ * With a parallelism above one the passes are split into row bands on a fork-join pool.
+ * Every output value is computed by the same operations in the same order as on one thread,
+ * so the result is bit-identical.
+ */
+class Convolution_Engine {
+
+    static final int SEPARABLE = 0;
+    static final int FFT = 1;
+
+    static final double TOLERANCE = 1e-9;
+    static final int FFT_MIN_WIDTH = 96; // kernel width from which the FFT path is faster
+
+    static int chooseMethod(int width) {
+        return width < FFT_MIN_WIDTH ? SEPARABLE : FFT;
+    }
+
+    // sums are kept in double, idle work arrays grow as needed and are reused until releaseWorkspaces
+    private static final ConcurrentLinkedQueue<Workspace> idleWorkspaces = new ConcurrentLinkedQueue<>();
+    private static volatile int workspaceGeneration;
+
+    // more threads than this only add overhead
+    static final int MAX_PARALLELISM = 4 * Runtime.getRuntime().availableProcessors();
+
+    // single pool shared by all callers, replaced when another parallelism is asked for
+    private static ForkJoinPool pool;
+
+    // parallelism within 1 .. MAX_PARALLELISM
+    static int clampParallelism(int parallelism) {
+        return Math.max(1, Math.min(parallelism, MAX_PARALLELISM));
+    }
+
+    /**
+     * Convolves src (row major, w * h) with the kernel (width * width, x index fastest)
+     * and writes the row major response to the first w * h entries of dst.
+     */
+    static void convolve(float[] src, int w, int h, double[] kernel, int width, float[] dst) {
+        convolve(src, w, h, kernel, width, dst, 1);
+    }
+
+    static void convolve(float[] src, int w, int h, double[] kernel, int width, float[] dst, int parallelism) {
+        if (chooseMethod(width) == SEPARABLE) {
+            SeparableKernel separable = SeparableKernel.fromLoG(kernel, width);
+            if (separable != null) {
+                convolveSeparable(src, w, h, separable, dst, parallelism);
+                return;
+            }
+        }
+        convolveFFT(src, w, h, kernelSpectrum(kernel, width), width, dst, parallelism);
+    }
+
+    // same as convolve with Nuclei_Counter's LoG kernel of this width, reusing the cached kernel forms
+    static void convolveLoG(float[] src, int w, int h, int width, float[] dst, int parallelism) {
+        if (chooseMethod(width) == SEPARABLE) {
+            SeparableKernel separable = Kernel_Cache.separable(width);
+            if (separable != null) {
+                convolveSeparable(src, w, h, separable, dst, parallelism);
+                return;
+            }
+        }
+        convolveFFT(src, w, h, Kernel_Cache.spectrum(width), width, dst, parallelism);
+    }
+
+    /********************************************************
+     * 														*
+     *						ROW BANDS						*
+     *														*
+     ********************************************************/
+
+    interface Band {
+        // processes rows start (inclusive) to end (exclusive)
+        void rows(int start, int end);
+    }
+
+    /**
+     * Splits rows 0 .. rows - 1 into bands and runs them on the fork-join pool of this parallelism.
+     * Runs on the calling thread if parallelism is one or there are too few rows.
+     */
+    static void forEachBand(int rows, int parallelism, final Band band) {
+        parallelism = clampParallelism(parallelism);
+        int bands = parallelism * 4 < rows ? parallelism * 4 : rows;
+        if (parallelism <= 1 || bands <= 1) {
+            band.rows(0, rows);
+            return;
+        }
+
+        final ArrayList<RecursiveAction> tasks = new ArrayList<>();
+        for (int b = 0; b < bands; b++) {
+            final int start = (int) ((long) rows * b / bands);
+            final int end = (int) ((long) rows * (b + 1) / bands);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    band.rows(start, end);
+                }
+            });
+        }
+
+        RecursiveAction all = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        };
+        try {
+            pool(parallelism).invoke(all);
+        } catch (RejectedExecutionException e) {
+            // the pool was replaced by a caller of another parallelism in the meantime
+            all.reinitialize();
+            pool(parallelism).invoke(all);
+        }
+    }
+
+    // the pool of this parallelism, the previous one finishes its tasks and is shut down
+    private static synchronized ForkJoinPool pool(int parallelism) {
+        if (pool == null || pool.getParallelism() != parallelism) {
+            if (pool != null) pool.shutdown();
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    // work arrays of at least length, taken from the idle ones if there are any
+    private static Workspace workspace(int length) {
+        Workspace workspace = idleWorkspaces.poll();
+        if (workspace == null || workspace.generation != workspaceGeneration) workspace = new Workspace();
+        if (workspace.sum.length < length) {
+            workspace.sum = new double[length];
+            workspace.tmp = new double[length];
+        }
+        return workspace;
+    }
+
+    // drops the idle work arrays, see Nuclei_Counter.releaseBuffers
+    static void releaseWorkspaces() {
+        workspaceGeneration++;
+        idleWorkspaces.clear();
+    }
+
+    /********************************************************
+     * 														*
+     *						SEPARABLE						*
+     *														*
+     ********************************************************/
+
+    /**
+     * kernel[i + width * j] = scale * (deriv[i] * gauss[j] + gauss[i] * deriv[j]) + offset
+     */
+    static class SeparableKernel {
+        final int width;
+        final double[] gauss;
+        final double[] deriv;
+        final double[] ones;
+        final double scale;
+        final double offset;
+
+        private SeparableKernel(int width, double[] gauss, double[] deriv, double scale, double offset) {
+            this.width = width;
+            this.gauss = gauss;
+            this.deriv = deriv;
+            this.scale = scale;
+            this.offset = offset;
+            ones = new double[width];
+            for (int i = 0; i < width; i++) ones[i] = 1;
+        }
+
+        // returns null if the kernel is not the LoG kernel of this width
+        static SeparableKernel fromLoG(double[] kernel, int width) {
+            double bounds = ((double) width - 1.0) / 2.0;
+            double sigma = ((double) width - 1.0) / 3.0;
+            double variance = sigma * sigma;
+
+            double[] gauss = new double[width];
+            double[] deriv = new double[width];
+            double gaussSum = 0;
+            for (int i = 0; i < width; i++) {
+                double n = i - bounds;
+                gauss[i] = Math.exp(-(n * n) / (2 * variance));
+                deriv[i] = (n * n - variance) * gauss[i];
+                gaussSum += gauss[i];
+            }
+            double scale = 1.0 / (variance * variance * gaussSum * gaussSum);
+
+            // fit the constant part from the residual of the exact kernel
+            double offset = 0;
+            for (int j = 0; j < width; j++) {
+                for (int i = 0; i < width; i++) {
+                    offset += kernel[i + width * j] - scale * (deriv[i] * gauss[j] + gauss[i] * deriv[j]);
+                }
+            }
+            offset /= width * width;
+
+            double maxError = 0, maxAbs = 0;
+            for (int j = 0; j < width; j++) {
+                for (int i = 0; i < width; i++) {
+                    double k = kernel[i + width * j];
+                    double error = Math.abs(k - scale * (deriv[i] * gauss[j] + gauss[i] * deriv[j]) - offset);
+                    maxError = error > maxError ? error : maxError;
+                    maxAbs = Math.abs(k) > maxAbs ? Math.abs(k) : maxAbs;
+                }
+            }
+            if (maxError > TOLERANCE * maxAbs) return null;
+
+            return new SeparableKernel(width, gauss, deriv, scale, offset);
+        }
+    }
+
+    static void convolveSeparable(final float[] src, final int w, final int h, final SeparableKernel k,
+                                  final float[] dst, int parallelism) {
+        Workspace workspace = workspace(w * h);
+        try {
+            convolveSeparable(src, w, h, k, dst, parallelism, workspace.sum, workspace.tmp);
+        } finally {
+            if (workspace.generation == workspaceGeneration) idleWorkspaces.offer(workspace);
+        }
+    }
+
+    private static void convolveSeparable(final float[] src, final int w, final int h, final SeparableKernel k,
+                                          final float[] dst, int parallelism, final double[] sum, final double[] tmp) {
+        Arrays.fill(sum, 0, w * h, 0);
+
+        final double[][] terms = {k.deriv, k.gauss, k.gauss, k.deriv, k.ones, k.ones};
+        final double[] factors = {k.scale, k.scale, k.offset};
+        for (int t = 0; t < 3; t++) {
+            final double[] hf = terms[2 * t];
+            final double[] vf = terms[2 * t + 1];
+            final double factor = factors[t];
+            forEachBand(h, parallelism, new Band() {
+                @Override
+                public void rows(int start, int end) {
+                    horizontal(src, tmp, w, start, end, hf);
+                }
+            });
+            forEachBand(h, parallelism, new Band() {
+                @Override
+                public void rows(int start, int end) {
+                    vertical(tmp, sum, w, h, start, end, vf, factor);
+                }
+            });
+        }
+
+        forEachBand(h, parallelism, new Band() {
+            @Override
+            public void rows(int start, int end) {
+                for (int i = start * w; i < end * w; i++) dst[i] = (float) sum[i];
+            }
+        });
+    }
+
+    // dst[x, y] = sum_i f[i] * src[x + i - o, y]
+    private static void horizontal(float[] src, double[] dst, int w, int yStart, int yEnd, double[] f) {
+        int width = f.length;
+        int o = (width - 1) / 2;
+        for (int y = yStart; y < yEnd; y++) {
+            int row = y * w;
+            for (int x = 0; x < w; x++) {
+                int iStart = o - x > 0 ? o - x : 0;
+                int iEnd = w - 1 - x + o < width - 1 ? w - 1 - x + o : width - 1;
+                double sum = 0;
+                int offset = row + x - o;
+                for (int i = iStart; i <= iEnd; i++) {
+                    sum += f[i] * src[offset + i];
+                }
+                dst[row + x] = sum;
+            }
+        }
+    }
+
+    // dst[x, y] += factor * sum_j f[j] * src[x, y + j - o]
+    private static void vertical(double[] src, double[] dst, int w, int h, int yStart, int yEnd, double[] f, double factor) {
+        int width = f.length;
+        int o = (width - 1) / 2;
+        double[] sum = new double[w];
+        for (int y = yStart; y < yEnd; y++) {
+            int jStart = o - y > 0 ? o - y : 0;
+            int jEnd = h - 1 - y + o < width - 1 ? h - 1 - y + o : width - 1;
+            for (int x = 0; x < w; x++) sum[x] = 0;
+            for (int j = jStart; j <= jEnd; j++) {
+                double fj = f[j];
+                int row = (y + j - o) * w;
+                for (int x = 0; x < w; x++) {
+                    sum[x] += fj * src[row + x];
+                }
+            }
+            int row = y * w;
+            for (int x = 0; x < w; x++) {
+                dst[row + x] += factor * sum[x];
+            }
+        }
+    }
+
+    /********************************************************
+     * 														*
+     *							FFT							*
+     *														*
+     ********************************************************/
+
+    // {real, imaginary} kernel spectrum on a tile, mirrored so that the circular convolution
+    // yields sum_i k[i] * src[x + i - o]
+    static double[][] kernelSpectrum(double[] kernel, int width) {
+        int o = (width - 1) / 2;
+        int tile = tileSize(width);
+        double[] kRe = new double[tile * tile];
+        double[] kIm = new double[tile * tile];
+        for (int j = 0; j < width; j++) {
+            int v = ((o - j) % tile + tile) % tile;
+            for (int i = 0; i < width; i++) {
+                int u = ((o - i) % tile + tile) % tile;
+                kRe[u + tile * v] = kernel[i + width * j];
+            }
+        }
+        fft2D(kRe, kIm, tile, false);
+        return new double[][]{kRe, kIm};
+    }
+
+    static void convolveFFT(final float[] src, final int w, final int h, double[][] spectrum, int width,
+                            final float[] dst, int parallelism) {
+        final int o = (width - 1) / 2;
+        final int tile = tileSize(width);
+        final int block = tile - width + 1; // valid output per tile
+        final double[] kRe = spectrum[0];
+        final double[] kIm = spectrum[1];
+
+        // bands are rows of tiles
+        int tileRows = (h + block - 1) / block;
+        forEachBand(tileRows, parallelism, new Band() {
+            @Override
+            public void rows(int start, int end) {
+                double[] re = new double[tile * tile];
+                double[] im = new double[tile * tile];
+                for (int t = start; t < end; t++) {
+                    int y0 = t * block;
+                    for (int x0 = 0; x0 < w; x0 += block) {
+                        convolveTile(src, w, h, x0, y0, o, tile, block, kRe, kIm, re, im, dst);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void convolveTile(float[] src, int w, int h, int x0, int y0, int o, int tile, int block,
+                                     double[] kRe, double[] kIm, double[] re, double[] im, float[] dst) {
+        // input tile starts at (x0 - o, y0 - o), zero outside the image
+        for (int ty = 0; ty < tile; ty++) {
+            int sy = y0 - o + ty;
+            for (int tx = 0; tx < tile; tx++) {
+                int sx = x0 - o + tx;
+                re[tx + tile * ty] = sx >= 0 && sx < w && sy >= 0 && sy < h ? src[sx + w * sy] : 0;
+                im[tx + tile * ty] = 0;
+            }
+        }
+
+        fft2D(re, im, tile, false);
+        for (int i = 0; i < re.length; i++) {
+            double r = re[i] * kRe[i] - im[i] * kIm[i];
+            im[i] = re[i] * kIm[i] + im[i] * kRe[i];
+            re[i] = r;
+        }
+        fft2D(re, im, tile, true);
+
+        int yEnd = y0 + block < h ? y0 + block : h;
+        int xEnd = x0 + block < w ? x0 + block : w;
+        for (int y = y0; y < yEnd; y++) {
+            for (int x = x0; x < xEnd; x++) {
+                dst[x + w * y] = (float) re[(x - x0 + o) + tile * (y - y0 + o)];
+            }
+        }
+    }
+
+    // smallest power of two with at least four times the kernel width
+    private static int tileSize(int width) {
+        int tile = 64;
+        while (tile < 4 * width) tile <<= 1;
+        return tile;
+    }
+
+    // in place 2D FFT of a n * n complex array, n power of two
+    private static void fft2D(double[] re, double[] im, int n, boolean inverse) {
+        double[] rowRe = new double[n];
+        double[] rowIm = new double[n];
+        for (int y = 0; y < n; y++) {
+            System.arraycopy(re, y * n, rowRe, 0, n);
+            System.arraycopy(im, y * n, rowIm, 0, n);
+            fft(rowRe, rowIm, inverse);
+            System.arraycopy(rowRe, 0, re, y * n, n);
+            System.arraycopy(rowIm, 0, im, y * n, n);
+        }
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                rowRe[y] = re[x + n * y];
+                rowIm[y] = im[x + n * y];
+            }
+            fft(rowRe, rowIm, inverse);
+            for (int y = 0; y < n; y++) {
+                re[x + n * y] = rowRe[y];
+                im[x + n * y] = rowIm[y];
+            }
+        }
+    }
+
+    // iterative radix-2 Cooley-Tukey, the inverse is scaled by 1/n
+    private static void fft(double[] re, double[] im, boolean inverse) {
+        int n = re.length;
+
+        // bit reversal permutation
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) j ^= bit;
+            j ^= bit;
+            if (i < j) {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = 2 * Math.PI / length * (inverse ? 1 : -1);
+            double wRe = Math.cos(angle);
+            double wIm = Math.sin(angle);
+            int half = length >> 1;
+            for (int i = 0; i < n; i += length) {
+                double uRe = 1, uIm = 0;
+                for (int j = 0; j < half; j++) {
+                    int a = i + j;
+                    int b = a + half;
+                    double vRe = re[b] * uRe - im[b] * uIm;
+                    double vIm = re[b] * uIm + im[b] * uRe;
+                    re[b] = re[a] - vRe;
+                    im[b] = im[a] - vIm;
+                    re[a] += vRe;
+                    im[a] += vIm;
+                    double t = uRe * wRe - uIm * wIm;
+                    uIm = uRe * wIm + uIm * wRe;
+                    uRe = t;
+                }
+            }
+        }
+
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[i] /= n;
+                im[i] /= n;
+            }
+        }
+    }
+
+    private static class Workspace {
+        private final int generation = workspaceGeneration;
+        private double[] sum = new double[0];
+        private double[] tmp = new double[0];
+    }
+}
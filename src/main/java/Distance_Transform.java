@@ -0,0 +1,86 @@
+/**
+ * Created on 17/10/2026.
+ *
+ * Exact Euclidean distance transform in linear time (Felzenszwalb and Huttenlocher, lower envelope of
+ * parabolas): one 1D pass over the columns, one over the rows. Gives each pixel of a mask the distance
+ * to the nearest pixel outside of it, pixels beyond the mask bounds count as outside.
+ */
+class Distance_Transform {
+
+    private static final double INF = 1e20;
+
+    /**
+     * Squared distance of every mask pixel (non zero) to the nearest pixel outside of the mask, 0 outside.
+     * mask and the result are width * height, row major.
+     */
+    static float[] squared(byte[] mask, int width, int height) {
+        // one pixel of background around the mask
+        int w = width + 2;
+        int h = height + 2;
+        double[] grid = new double[w * h];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (mask[y * width + x] != 0) grid[(y + 1) * w + x + 1] = INF;
+            }
+        }
+
+        int n = Math.max(w, h);
+        double[] f = new double[n];
+        double[] d = new double[n];
+        int[] v = new int[n];
+        double[] z = new double[n + 1];
+
+        // columns
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) f[y] = grid[y * w + x];
+            transform(f, h, d, v, z);
+            for (int y = 0; y < h; y++) grid[y * w + x] = d[y];
+        }
+
+        // rows
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(grid, y * w, f, 0, w);
+            transform(f, w, d, v, z);
+            System.arraycopy(d, 0, grid, y * w, w);
+        }
+
+        float[] distances = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                distances[y * width + x] = (float) grid[(y + 1) * w + x + 1];
+            }
+        }
+        return distances;
+    }
+
+    // 1D squared distance transform of the sampled function f[0..n-1] into d, v and z are work arrays
+    private static void transform(double[] f, int n, double[] d, int[] v, double[] z) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = -INF;
+        z[1] = INF;
+        for (int q = 1; q < n; q++) {
+            double s = intersection(f, q, v[k]);
+            while (s <= z[k]) {
+                k--;
+                s = intersection(f, q, v[k]);
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k + 1] = INF;
+        }
+
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k + 1] < q) k++;
+            double dq = q - v[k];
+            d[q] = dq * dq + f[v[k]];
+        }
+    }
+
+    // where the parabolas of q and p intersect
+    private static double intersection(double[] f, int q, int p) {
+        return ((f[q] + (double) q * q) - (f[p] + (double) p * p)) / (2.0 * q - 2.0 * p);
+    }
+}
@@ -0,0 +1,85 @@
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+
+import java.awt.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Least recently used cache of ROI threshold histograms, so moving a threshold slider and measuring again
+ * does not read the pixels again. Keys start with the ID of the source image like those of {@link Response_Cache}.
+ */
+class Histogram_Cache {
+
+    private static final long MAX_BYTES = Math.min(64L << 20, Runtime.getRuntime().maxMemory() / 32);
+
+    private static final LinkedHashMap<String, Roi_Histogram> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytes;
+
+    // identifies the histograms of one ROI, sourceKey from Response_Cache.sourceKey
+    static String key(String sourceKey, Roi roi, int slice, boolean darkPeaks, int numerator, int denominator) {
+        return sourceKey + "|" + roiKey(roi) + "|" + slice + "|" + darkPeaks + "|" + numerator + "," + denominator;
+    }
+
+    // type, bounds and outline of the ROI, so an edited ROI of the same name gets a new key
+    static String roiKey(Roi roi) {
+        if (roi == null) return "all";
+        Rectangle r = roi.getBounds();
+        FloatPolygon p = roi.getFloatPolygon();
+        String outline = p != null ? p.npoints + "," + String.format("%016x", outlineHash(p)) : "0";
+        return roi.getType() + ":" + r.x + "," + r.y + "," + r.width + "," + r.height + ":" + outline;
+    }
+
+    // 64-bit FNV-1a of the outline coordinates, keys are kept on disk across runs so 32 bits collide too often
+    private static long outlineHash(FloatPolygon p) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < p.npoints; i++) {
+            int x = Float.floatToIntBits(p.xpoints[i]);
+            int y = Float.floatToIntBits(p.ypoints[i]);
+            for (int shift = 0; shift < 32; shift += 8) h = (h ^ ((x >>> shift) & 0xff)) * 0x100000001b3L;
+            for (int shift = 0; shift < 32; shift += 8) h = (h ^ ((y >>> shift) & 0xff)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    static synchronized Roi_Histogram get(String key) {
+        return cache.get(key);
+    }
+
+    static synchronized void put(String key, Roi_Histogram histogram) {
+        long size = histogram.bytes();
+        if (size > MAX_BYTES) return;
+
+        Roi_Histogram old = cache.put(key, histogram);
+        if (old != null) bytes -= old.bytes();
+        bytes += size;
+
+        // evict least recently used
+        Iterator<Roi_Histogram> it = cache.values().iterator();
+        while (bytes > MAX_BYTES && it.hasNext()) {
+            bytes -= it.next().bytes();
+            it.remove();
+        }
+    }
+
+    static synchronized void invalidate(ImagePlus source) {
+        String prefix = source.getID() + ":";
+        Iterator<Map.Entry<String, Roi_Histogram>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Roi_Histogram> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                bytes -= entry.getValue().bytes();
+                it.remove();
+            }
+        }
+    }
+
+    static synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Session wide, thread-safe cache of everything that only depends on the cell width:
+ * the LoG kernel, its separable form and its FFT spectrum, plus the neighborhood offsets
+ * used to verify maxima. Two threads may build the same entry at once, both results are equal
+ * and the first one stored wins.
+ */
+class Kernel_Cache {
+
+    private static final ConcurrentHashMap<Integer, double[]> kernels = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Convolution_Engine.SeparableKernel> separable = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, double[][]> spectra = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Double, int[]> neighborhoods = new ConcurrentHashMap<>();
+
+    // width * width LoG kernel, x index fastest (see Nuclei_Counter.findKernel)
+    static double[] kernel(int width) {
+        double[] kernel = kernels.get(width);
+        if (kernel == null) {
+            kernel = Nuclei_Counter.findKernel(width);
+            double[] other = kernels.putIfAbsent(width, kernel);
+            if (other != null) kernel = other;
+        }
+        return kernel;
+    }
+
+    // separable form of kernel(width), null if it can't be split within the tolerance
+    static Convolution_Engine.SeparableKernel separable(int width) {
+        Convolution_Engine.SeparableKernel k = separable.get(width);
+        if (k == null) {
+            k = Convolution_Engine.SeparableKernel.fromLoG(kernel(width), width);
+            if (k == null) return null;
+            Convolution_Engine.SeparableKernel other = separable.putIfAbsent(width, k);
+            if (other != null) k = other;
+        }
+        return k;
+    }
+
+    // {real, imaginary} spectrum of kernel(width) for the FFT tiles
+    static double[][] spectrum(int width) {
+        double[][] spectrum = spectra.get(width);
+        if (spectrum == null) {
+            spectrum = Convolution_Engine.kernelSpectrum(kernel(width), width);
+            double[][] other = spectra.putIfAbsent(width, spectrum);
+            if (other != null) spectrum = other;
+        }
+        return spectrum;
+    }
+
+    // interleaved (dx, dy) offsets within epsilon (see Nuclei_Counter.neighborhood)
+    static int[] neighborhood(double epsilon) {
+        int[] offsets = neighborhoods.get(epsilon);
+        if (offsets == null) {
+            offsets = Nuclei_Counter.neighborhood(epsilon);
+            int[] other = neighborhoods.putIfAbsent(epsilon, offsets);
+            if (other != null) offsets = other;
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,159 @@
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Profiles of many straight lines on all channels of one image at once, e.g. the lines of a star plot.
+ * The samples and bilinear weights of a line are computed once and read on every channel straight from
+ * the pixel arrays, instead of one ProfilePlot per line and channel. Gives the same values as
+ * {@link Channel_View#getLine}, samples near or beyond the border are left to it. Lines are sampled in parallel.
+ */
+class Line_Sampler {
+
+    private final ArrayList<Channel_View> channels;
+    private final ImageProcessor[] processors;
+    private final Object[] pixels;
+    private final float[][] cTables;
+    private final int[] shifts;
+    private final int width;
+    private final int height;
+    private final boolean interpolate;
+
+    // processors[c] is the processor of channels[c], all of the same size
+    Line_Sampler(ArrayList<Channel_View> channels, ImageProcessor[] processors, boolean interpolate) {
+        this.channels = channels;
+        this.processors = processors;
+        this.interpolate = interpolate;
+        width = processors[0].getWidth();
+        height = processors[0].getHeight();
+
+        int n = channels.size();
+        pixels = new Object[n];
+        cTables = new float[n][];
+        shifts = new int[n];
+        for (int c = 0; c < n; c++) {
+            int channel = channels.get(c).channel;
+            if (channel != Channel_View.GRAY) {
+                pixels[c] = processors[c].getPixels();
+                shifts[c] = 16 - 8 * channel;
+            } else if (!(processors[c] instanceof ColorProcessor)) {
+                pixels[c] = processors[c].getPixels();
+                cTables[c] = processors[c].getCalibrationTable();
+            }
+            // a color processor as gray is left to Channel_View
+        }
+    }
+
+    /**
+     * Profiles[c][l] of line l (x1, y1, x2, y2) on channel c.
+     * Bands of lines run on the fork-join pool of Convolution_Engine if parallelism is above one.
+     */
+    double[][][] sample(final double[][] lines, int parallelism) {
+        final double[][][] profiles = new double[channels.size()][lines.length][];
+        Convolution_Engine.forEachBand(lines.length, parallelism, new Convolution_Engine.Band() {
+            @Override
+            public void rows(int start, int end) {
+                for (int l = start; l < end; l++) sampleLine(lines[l], profiles, l);
+            }
+        });
+        return profiles;
+    }
+
+    // same samples as ImageProcessor.getLine
+    private void sampleLine(double[] line, double[][][] profiles, int l) {
+        double dx = line[2] - line[0];
+        double dy = line[3] - line[1];
+        int n = (int) Math.round(Math.sqrt(dx * dx + dy * dy));
+        double xinc = dx / n;
+        double yinc = dy / n;
+        if (!((xinc == 0 && n == height) || (yinc == 0 && n == width))) n++;
+
+        // pixel index and weights of every sample, -1 for samples near the border
+        int[] index = new int[n];
+        double[] xFraction = new double[n];
+        double[] yFraction = new double[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        boolean border = false;
+        double rx = line[0];
+        double ry = line[1];
+        for (int i = 0; i < n; i++) {
+            xs[i] = rx;
+            ys[i] = ry;
+            if (interpolate) {
+                if (rx < 0 || rx >= width - 1 || ry < 0 || ry >= height - 1) {
+                    index[i] = -1;
+                    border = true;
+                } else {
+                    int xbase = (int) rx;
+                    int ybase = (int) ry;
+                    xFraction[i] = rx - xbase;
+                    yFraction[i] = ry - ybase;
+                    if (xFraction[i] < 0) xFraction[i] = 0;
+                    if (yFraction[i] < 0) yFraction[i] = 0;
+                    index[i] = ybase * width + xbase;
+                }
+            } else {
+                int x = (int) (rx + 0.5);
+                int y = (int) (ry + 0.5);
+                if (x < 0 || y < 0 || x >= width || y >= height) {
+                    index[i] = -1;
+                    border = true;
+                } else {
+                    index[i] = y * width + x;
+                }
+            }
+            rx += xinc;
+            ry += yinc;
+        }
+
+        for (int c = 0; c < profiles.length; c++) {
+            double[] data = new double[n];
+            Channel_View view = channels.get(c);
+            if (pixels[c] == null) {
+                for (int i = 0; i < n; i++) data[i] = view.getLineValue(processors[c], xs[i], ys[i], interpolate);
+                profiles[c][l] = data;
+                continue;
+            }
+            for (int i = 0; i < n; i++) {
+                int p = index[i];
+                if (p < 0) continue;
+                if (interpolate) {
+                    double lowerLeft = value(c, p);
+                    double lowerRight = value(c, p + 1);
+                    double upperRight = value(c, p + width + 1);
+                    double upperLeft = value(c, p + width);
+                    double upperAverage = upperLeft + xFraction[i] * (upperRight - upperLeft);
+                    double lowerAverage = lowerLeft + xFraction[i] * (lowerRight - lowerLeft);
+                    data[i] = lowerAverage + yFraction[i] * (upperAverage - lowerAverage);
+                } else {
+                    data[i] = value(c, p);
+                }
+            }
+            if (border) {
+                for (int i = 0; i < n; i++) {
+                    if (index[i] < 0) data[i] = view.getLineValue(processors[c], xs[i], ys[i], interpolate);
+                }
+            }
+            profiles[c][l] = data;
+        }
+    }
+
+    // same as getPixelValue of the channel inside the image
+    private float value(int c, int index) {
+        Object p = pixels[c];
+        if (p instanceof int[]) return 0xff & (((int[]) p)[index] >> shifts[c]);
+        if (p instanceof byte[]) {
+            int v = ((byte[]) p)[index] & 0xff;
+            return cTables[c] == null ? v : cTables[c][v];
+        }
+        if (p instanceof short[]) {
+            int v = ((short[]) p)[index] & 0xffff;
+            return cTables[c] == null ? v : cTables[c][v];
+        }
+        return ((float[]) p)[index];
+    }
+}
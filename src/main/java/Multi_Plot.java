@@ -1,4 +1,6 @@
+import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.*;
 import ij.measure.Calibration;
 import ij.measure.Measurements;
@@ -6,13 +8,15 @@ import ij.measure.ResultsTable;
 import ij.plugin.RoiEnlarger;
 import ij.plugin.RoiRotator;
 import ij.plugin.filter.Analyzer;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 
 import java.awt.*;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.concurrent.*;
 
 /**
  * Created on 14/10/2016.
@@ -27,18 +31,19 @@ class Multi_Plot{
     private int xMax;
     private String plotTitle;
     private ResultsTable table;
+    private final Result_Rows rows = new Result_Rows("Plot");
+    private Result_Rows target;  // rows of the current profile, rows or those of a batch
+    private boolean display;     // false in batch mode, nothing is shown
     private int roiPosition;
+    int parallelism = 1;         // threads for the lines of a star plot, or for the ROIs of runAll
+    private LinkedHashMap<String, double[]> profiles; // plotted profile per channel of the current ROI
+    private Plot plot;                                // plot of the current ROI
     static final int STAR_PLOT = 0;
     static final int RING_PLOT = 1;
     static final int CONVEX_HULL = 2;
+    static final int SURFACE_DISTANCE = 3;
 
-    void run(ArrayList<ImagePlus> channel, ImagePlus mask, int numberOfProfiles, boolean radiusMode, int variance, int customYMax, boolean[] options, int mode) {
-        yMax = 0;
-        xMax = 0;
-
-        Roi roi = mask.getRoi();
-        roiPosition = roi.getPosition() == 0? 1:roi.getPosition();
-
+    void run(ArrayList<Channel_View> channel, ImagePlus mask, int numberOfProfiles, boolean radiusMode, int variance, int customYMax, boolean[] options, int mode) {
         // options
         boolean cleanTable = options[0];
         boolean showOverlay = options[1];
@@ -48,6 +53,210 @@ class Multi_Plot{
         boolean autoBounds = options[5];
 
         if(cleanTable) table = new ResultsTable();
+        display = true;
+        target = rows;
+        profile(channel, mask, mask.getRoi(), numberOfProfiles, radiusMode, variance, autoScale ? -1 : customYMax,
+                showOverlay, showChannel, plotAll, autoBounds, mode);
+
+        // rows are shown once per run
+        if (rows.size() > 0) {
+            if (table==null) table = new ResultsTable();
+            rows.publish(table, "Results");
+        }
+    }
+
+    /**
+     * Profiles of all rois, concurrently on up to parallelism threads. Adds one row per ROI (max x/y, bounds)
+     * to the Results table and the profile of every ROI and channel to the "Multi Plot Profiles" table.
+     * Nothing is drawn, the plot of each ROI is only shown if showPlots is set. options are those of run.
+     */
+    void runAll(final ArrayList<Channel_View> channel, final ImagePlus image, Roi[] rois, final int numberOfProfiles, final boolean radiusMode,
+                final int variance, int customYMax, boolean[] options, final int mode, boolean showPlots) {
+        boolean cleanTable = options[0];
+        final boolean autoBounds = options[5];
+        final int yMaxOfPlots = options[4] ? -1 : customYMax;
+        if(cleanTable || table == null) table = new ResultsTable();
+
+        // the threads go to the ROIs when there are several of them, otherwise to the lines
+        ExecutorService executor = parallelism > 1 && rois.length > 1 ? Executors.newFixedThreadPool(Math.min(parallelism, rois.length)) : null;
+        final int lineParallelism = executor != null ? 1 : parallelism;
+        final ImageStack stack = image.getStack();
+        ResultsTable profileTable = new ResultsTable();
+        try {
+            ArrayList<Future<Multi_Plot>> results = new ArrayList<>();
+            for (final Roi roi : rois) {
+                if (!roi.isArea()) continue;
+                Callable<Multi_Plot> task = new Callable<Multi_Plot>() {
+                    @Override
+                    public Multi_Plot call() {
+                        // own image and channels on the same pixels, the ROI and statistics of one task don't touch the others
+                        ImagePlus copy = new ImagePlus(image.getTitle(), stack);
+                        copy.setCalibration(image.getCalibration());
+                        ArrayList<Channel_View> views = new ArrayList<>();
+                        for (Channel_View view : channel) views.add(new Channel_View(copy, view.channel));
+
+                        Multi_Plot roiPlot = new Multi_Plot();
+                        roiPlot.parallelism = lineParallelism;
+                        roiPlot.display = false;
+                        roiPlot.target = new Result_Rows("Plot");
+                        copy.setRoi(roi);
+                        roiPlot.profile(views, copy, copy.getRoi(), numberOfProfiles, radiusMode, variance, yMaxOfPlots,
+                                false, false, false, autoBounds, mode);
+                        return roiPlot;
+                    }
+                };
+                if (executor != null) results.add(executor.submit(task));
+                else {
+                    FutureTask<Multi_Plot> future = new FutureTask<>(task);
+                    future.run();
+                    results.add(future);
+                }
+            }
+
+            // rows in ROI Manager order
+            ArrayList<Multi_Plot> done = new ArrayList<>();
+            int length = 0;
+            for (Future<Multi_Plot> future : results) {
+                Multi_Plot roiPlot = future.get();
+                roiPlot.target.appendTo(table);
+                for (double[] profile : roiPlot.profiles.values()) length = Math.max(length, profile.length);
+                if (showPlots) roiPlot.plot.show();
+                done.add(roiPlot);
+            }
+
+            // one row per ROI and channel, NaN beyond the end of shorter profiles
+            for (Multi_Plot roiPlot : done) {
+                for (String title : roiPlot.profiles.keySet()) {
+                    double[] profile = roiPlot.profiles.get(title);
+                    profileTable.incrementCounter();
+                    profileTable.addValue("Plot", roiPlot.plotTitle);
+                    profileTable.addValue("Channel", title);
+                    for (int i = 0; i < length; i++) profileTable.addValue(String.valueOf(i), i < profile.length ? profile[i] : Double.NaN);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+
+        if (table.getCounter() > 0) {
+            Analyzer.setResultsTable(table);
+            table.show("Results");
+        }
+        profileTable.show("Multi Plot Profiles");
+    }
+
+    /**
+     * Ring, convex hull or surface distance profile of the ROI of image on every slice of its stack, slices in
+     * parallel. The centroid, mask and distance bins are computed once for all slices. Shows a distance x
+     * slice kymograph (one slice per channel) and adds one row per slice and channel to the "Stack Profiles" table.
+     */
+    void runStack(final ArrayList<Channel_View> channel, ImagePlus image, int variance, final int mode) {
+        Roi roi = image.getRoi();
+        if (roi == null || !roi.isArea()) {
+            IJ.showMessage("Nothing to do.", "No ROI selected");
+            return;
+        }
+        initCentroid(roi);
+        final int radius = getRadius(roi, variance);
+        final ImageStack stack = image.getStack();
+        final int slices = stack.getSize();
+        final double[][][] values = new double[channel.size()][slices][];
+
+        String title;
+        if (mode == RING_PLOT) {
+            title = "Ring";
+            Convolution_Engine.forEachBand(slices, parallelism, new Convolution_Engine.Band() {
+                @Override
+                public void rows(int start, int end) {
+                    for (int slice = start; slice < end; slice++) {
+                        ImageProcessor imp = stack.getProcessor(slice + 1);
+                        for (int c = 0; c < values.length; c++) values[c][slice] = getRingValues(channel.get(c), imp, radius);
+                    }
+                }
+            });
+        } else {
+            title = mode == CONVEX_HULL ? "Convex hull" : "Surface distance";
+            Roi area = mode == CONVEX_HULL ? roiToConvexHull(roi, variance) : enlarge(roi, variance);
+            final Rectangle r = area.getBounds();
+            final int[] bins = surfaceBins(area);
+            final int length = binCount(bins);
+            Convolution_Engine.forEachBand(slices, parallelism, new Convolution_Engine.Band() {
+                @Override
+                public void rows(int start, int end) {
+                    for (int slice = start; slice < end; slice++) {
+                        ImageProcessor imp = stack.getProcessor(slice + 1);
+                        for (int c = 0; c < values.length; c++) values[c][slice] = getSurfaceDistanceValues(channel.get(c), imp, r, bins, length);
+                    }
+                }
+            });
+        }
+        title += " kymograph (" + image.getTitle() + " | " + roi.getName() + ")";
+
+        // distance x slice per channel
+        int length = values[0][0].length;
+        ImageStack kymographs = new ImageStack(length, slices);
+        ResultsTable profileTable = new ResultsTable();
+        for (int c = 0; c < values.length; c++) {
+            FloatProcessor kymograph = new FloatProcessor(length, slices);
+            for (int slice = 0; slice < slices; slice++) {
+                double[] profile = values[c][slice];
+                profileTable.incrementCounter();
+                profileTable.addValue("Slice", slice + 1);
+                profileTable.addValue("Channel", channel.get(c).getTitle());
+                for (int i = 0; i < length; i++) {
+                    kymograph.setf(i, slice, (float) profile[i]);
+                    profileTable.addValue(String.valueOf(i), profile[i]);
+                }
+            }
+            kymographs.addSlice(channel.get(c).getTitle(), kymograph);
+        }
+
+        ImagePlus kymograph = new ImagePlus(title, kymographs);
+        kymograph.getProcessor().resetMinAndMax();
+        kymograph.show();
+        profileTable.show("Stack Profiles");
+    }
+
+    /**
+     * Profile values of roi without overlays, windows or plots, for Batch_Runner.
+     * The result rows are added to target, the ROI becomes the ROI of mask.
+     */
+    void measure(ArrayList<Channel_View> channel, ImagePlus mask, Roi roi, int numberOfProfiles, boolean radiusMode, int variance, boolean autoBounds, int mode, Result_Rows target) {
+        mask.setRoi(roi);
+        display = false;
+        this.target = target;
+        profile(channel, mask, mask.getRoi(), numberOfProfiles, radiusMode, variance, -1, false, false, false, autoBounds, mode);
+    }
+
+    // value headings of the rows of measure in row order, the layout of a Result_Writer
+    static String[] columns(ArrayList<String> titles, int mode, boolean radiusMode, boolean autoBounds) {
+        ArrayList<String> headings = new ArrayList<>();
+        if (mode == STAR_PLOT && !radiusMode) return new String[0]; // no rows
+        for (String title : titles) {
+            String channelName = title.equals("red")||title.equals("green")||title.equals("blue")?title:"";
+            headings.add(channelName + " max x");
+            headings.add(channelName + " max y");
+            if (autoBounds) {
+                headings.add(channelName + " bounds x");
+                headings.add(channelName + " bounds y");
+            }
+        }
+        headings.add("radius (x max)");
+        return headings.toArray(new String[headings.size()]);
+    }
+
+    // customYMax < 0 scales the plot to the profiles
+    private void profile(ArrayList<Channel_View> channel, ImagePlus mask, Roi roi, int numberOfProfiles, boolean radiusMode, int variance, int customYMax,
+                         boolean showOverlay, boolean showChannel, boolean plotAll, boolean autoBounds, int mode) {
+        yMax = 0;
+        xMax = 0;
+        roiPosition = roi.getPosition() == 0? 1:roi.getPosition();
+
         initCentroid(roi);
         int radius = getRadius(roi, variance);
         String xLabel;
@@ -59,32 +268,37 @@ class Multi_Plot{
                 plotTitle = "Star plot" + imgAndRoiTitle;
                 ArrayList<Roi> lines = initLines(radiusMode, radius, numberOfProfiles);
                 if (showChannel) showLines(channel, lines);
-                showLines(mask, lines, !showOverlay);
-                HashMap<ImagePlus, ArrayList<double[]>> listOfAllProfiles = createAllProfiles(channel, roi, lines);
-                if(!autoScale) yMax = customYMax;
+                if (display) showLines(mask, lines, !showOverlay);
+                LinkedHashMap<Channel_View, ArrayList<double[]>> listOfAllProfiles = createAllProfiles(channel, lines);
+                if(customYMax >= 0) yMax = customYMax;
                 plotStarAverage(listOfAllProfiles, plotAll, radiusMode, autoBounds);
                 break;
             case RING_PLOT:
                 plotTitle = "Ring plot" + imgAndRoiTitle;
                 xLabel = "Distance from centroid (pixels)";
-                showOuterRingAndCentroid(mask, radius, !showOverlay, roi.getPosition());
+                if (display) showOuterRingAndCentroid(mask, radius, !showOverlay, roi.getPosition());
                 if(showChannel) showOuterRingAndCentroid(channel, radius);
                 intensityValues = collectRingValues(channel, radius);
-                if(!autoScale) yMax = customYMax;
+                if(customYMax >= 0) yMax = customYMax;
                 plot(intensityValues, xLabel, autoBounds);
                 break;
             case CONVEX_HULL:
-                plotTitle = "Convex hull plot" + imgAndRoiTitle;
-                roi = roiToConvexHull(roi, variance);
+            case SURFACE_DISTANCE:
+                if (mode == CONVEX_HULL) {
+                    plotTitle = "Convex hull plot" + imgAndRoiTitle;
+                    roi = roiToConvexHull(roi, variance);
+                } else {
+                    plotTitle = "Surface distance plot" + imgAndRoiTitle;
+                    roi = enlarge(roi, variance);
+                }
                 xLabel = "Distance from surface edge (pixels)";
-                showHullAndCentroid(mask, roi, !showOverlay);
+                if (display) showHullAndCentroid(mask, roi, !showOverlay);
                 if(showChannel) showHullAndCentroid(channel, roi);
-                intensityValues = collectConvexHullValues(channel, roi, radius);
-                if(!autoScale) yMax = customYMax;
+                intensityValues = collectSurfaceDistanceValues(channel, roi);
+                if(customYMax >= 0) yMax = customYMax;
                 plot(intensityValues, xLabel, autoBounds);
                 break;
         }
-
     }
 
     private Color toColor(String color) {
@@ -145,8 +359,9 @@ class Multi_Plot{
         image.show();
     }
 
-    private void showLines(ArrayList<ImagePlus> channel, ArrayList<Roi> lines) {
-        for (ImagePlus currChannel : channel) {
+    private void showLines(ArrayList<Channel_View> channel, ArrayList<Roi> lines) {
+        for (Channel_View view : channel) {
+            ImagePlus currChannel = view.toImagePlus();
             Overlay overlay = new Overlay();
             for (Roi l : lines) {
                 overlay.add(l);
@@ -157,22 +372,30 @@ class Multi_Plot{
         }
     }
 
-    private HashMap<ImagePlus , ArrayList<double[]>> createAllProfiles(ArrayList<ImagePlus> channel, Roi roi, ArrayList<Roi> lines) {
-        HashMap<ImagePlus, ArrayList<double[]>> listOfAllProfiles = new HashMap<>();
-        for (ImagePlus currChannel : channel) {
+    private LinkedHashMap<Channel_View, ArrayList<double[]>> createAllProfiles(ArrayList<Channel_View> channel, ArrayList<Roi> lines) {
+        // same samples as a ProfilePlot of each line on each channel image, all lines and channels at once
+        ImageProcessor[] processors = new ImageProcessor[channel.size()];
+        for (int c = 0; c < processors.length; c++) {
+            processors[c] = channel.get(c).image.getStack().getProcessor(roiPosition);
+        }
+        double[][] coordinates = new double[lines.size()][];
+        for (int l = 0; l < coordinates.length; l++) {
+            Line line = (Line) lines.get(l);
+            coordinates[l] = new double[]{line.x1d, line.y1d, line.x2d, line.y2d};
+        }
+        double[][][] samples = new Line_Sampler(channel, processors, PlotWindow.interpolate).sample(coordinates, parallelism);
+
+        LinkedHashMap<Channel_View, ArrayList<double[]>> listOfAllProfiles = new LinkedHashMap<>();
+        for (int c = 0; c < processors.length; c++) {
             ArrayList<double[]> profiles = new ArrayList<>();
-            for (Roi l : lines) {
-                currChannel.setRoi(l);
-                ProfilePlot profilePlot = new ProfilePlot(currChannel);
-                profiles.add(profilePlot.getProfile());
-                if(profilePlot.getMax() > yMax) {
-                    yMax = profilePlot.getMax();
+            for (double[] profile : samples[c]) {
+                profiles.add(profile);
+                for (double value : profile) {
+                    if (value > yMax) yMax = value;
                 }
-                int length = profilePlot.getProfile().length;
-                if(length > xMax) xMax = length;
-                currChannel.setRoi(roi);
+                if(profile.length > xMax) xMax = profile.length;
             }
-            listOfAllProfiles.put(currChannel, profiles);
+            listOfAllProfiles.put(channel.get(c), profiles);
         }
         return listOfAllProfiles;
     }
@@ -193,7 +416,7 @@ class Multi_Plot{
         return avg;
     }
 
-    private void plotStarAverage(HashMap<ImagePlus, ArrayList<double[]>> listOfAllProfiles, boolean plotAll, boolean radius, boolean autoBounds) {
+    private void plotStarAverage(LinkedHashMap<Channel_View, ArrayList<double[]>> listOfAllProfiles, boolean plotAll, boolean radius, boolean autoBounds) {
         // init x values 0 .. xMax
         double[] x = new double[xMax];
         for (int i = 0; i < xMax; i++) {
@@ -206,8 +429,10 @@ class Multi_Plot{
 
         // avg all profiles of all channels
         LinkedHashMap<String, Double> resultValues = new LinkedHashMap<>();
+        this.profiles = new LinkedHashMap<>();
+        this.plot = plot;
 
-        for (ImagePlus currChannel :listOfAllProfiles.keySet()){
+        for (Channel_View currChannel :listOfAllProfiles.keySet()){
             // all plots
             ArrayList<double[]> profiles = listOfAllProfiles.get(currChannel);
             if(plotAll) {
@@ -221,6 +446,7 @@ class Multi_Plot{
 
             //average plot
             double[] avg = avgProfile(profiles);
+            this.profiles.put(currChannel.getTitle(), avg);
             String title = currChannel.getTitle();
             Color avgColor = toColor(title);
             plot.setColor(avgColor);
@@ -252,14 +478,14 @@ class Multi_Plot{
             addValuesToResultsTable(resultValues);
         }
 
-        plot.show();
+        if (display) plot.show();
     }
 
-    private LinkedHashMap<String, double[]> collectRingValues (ArrayList<ImagePlus> channel, int radius) {
+    private LinkedHashMap<String, double[]> collectRingValues (ArrayList<Channel_View> channel, int radius) {
         // collect all intensity values to find yMax and xMax
         LinkedHashMap<String, double[]> intensityValues = new LinkedHashMap<>();
-        for (ImagePlus currChannel : channel) {
-            double[] y = getRingValues(currChannel, radius);
+        for (Channel_View currChannel : channel) {
+            double[] y = getRingValues(currChannel, currChannel.image.getStack().getProcessor(roiPosition), radius);
             intensityValues.put(currChannel.getTitle(), y);
             double yMaxNew = getMaxCoordinates(y)[1];
             yMax = yMaxNew > yMax ? yMaxNew : yMax;
@@ -268,11 +494,16 @@ class Multi_Plot{
         return intensityValues;
     }
 
-    private LinkedHashMap<String, double[]> collectConvexHullValues (ArrayList<ImagePlus> channel, Roi roi, int radius) {
+    private LinkedHashMap<String, double[]> collectSurfaceDistanceValues(ArrayList<Channel_View> channel, Roi roi) {
         // collect all intensity values to find yMax and xMax
         LinkedHashMap<String, double[]> intensityValues = new LinkedHashMap<>();
-        for (ImagePlus currChannel : channel) {
-            double[] y = getConvexHullValues(currChannel, roi, radius);
+        // the bins depend on the ROI only
+        Rectangle r = roi.getBounds();
+        int[] bins = surfaceBins(roi);
+        int length = binCount(bins);
+        for (Channel_View currChannel : channel) {
+            ImageProcessor imp = currChannel.image.getStack().getProcessor(roiPosition);
+            double[] y = getSurfaceDistanceValues(currChannel, imp, r, bins, length);
             intensityValues.put(currChannel.getTitle(), y);
             double yMaxNew = getMaxCoordinates(y)[1];
             yMax = yMaxNew > yMax ? yMaxNew : yMax;
@@ -293,6 +524,8 @@ class Multi_Plot{
         Plot plot = new Plot(plotTitle,xLabel,"Intensity (gray value)");
         plot.setLimits(0, xMax, 0, yMax + 1);
         plot.setLineWidth(1);
+        this.profiles = intensityValues;
+        this.plot = plot;
 
         LinkedHashMap<String, Double> resultValues = new LinkedHashMap<>();
         for (String title : intensityValues.keySet()) {
@@ -309,8 +542,8 @@ class Multi_Plot{
 
             if(autoBounds) {
                 double[] bounds = getBounds(y);
-                resultValues.put(title + " bounds x", bounds[0]);
-                resultValues.put(title + " bounds y", bounds[1]);
+                resultValues.put(channelName + " bounds x", bounds[0]);
+                resultValues.put(channelName + " bounds y", bounds[1]);
                 plot.setColor(Color.darkGray);
                 plot.drawLine(bounds[0], 0, bounds[0], 255);
 //                double area = getArea(y, bounds[0]);
@@ -320,7 +553,7 @@ class Multi_Plot{
         }
         resultValues.put("radius (x max)", (double) xMax);
         addValuesToResultsTable(resultValues);
-        plot.show();
+        if (display) plot.show();
     }
 
     private void showOuterRingAndCentroid(ImagePlus src, int radius, boolean hide, int roiPosition) {
@@ -335,8 +568,9 @@ class Multi_Plot{
         src.setHideOverlay(hide);
     }
 
-    private void showOuterRingAndCentroid(ArrayList<ImagePlus> channels, int radius) {
-        for (ImagePlus channel : channels) {
+    private void showOuterRingAndCentroid(ArrayList<Channel_View> channels, int radius) {
+        for (Channel_View view : channels) {
+            ImagePlus channel = view.toImagePlus();
             Overlay overlay= new Overlay();
             PointRoi pointRoi = new PointRoi(xCentroid,yCentroid);
             pointRoi.setPosition(roiPosition);
@@ -360,8 +594,9 @@ class Multi_Plot{
         src.setHideOverlay(hide);
     }
 
-    private void showHullAndCentroid(ArrayList<ImagePlus> channels, Roi roi) {
-        for (ImagePlus channel : channels) {
+    private void showHullAndCentroid(ArrayList<Channel_View> channels, Roi roi) {
+        for (Channel_View view : channels) {
+            ImagePlus channel = view.toImagePlus();
             Overlay overlay= new Overlay();
             PointRoi pointRoi = new PointRoi(xCentroid,yCentroid);
             pointRoi.setPosition(roiPosition);
@@ -373,106 +608,100 @@ class Multi_Plot{
         }
     }
 
-    private double[] getRingValues(ImagePlus src, int radius) {
-        ArrayList<ArrayList<Float>> allRingValues = new ArrayList<>();
-        for (int i=0; i <= radius; i++) {
-            allRingValues.add(new ArrayList<Float>());
-        }
-        ImageProcessor imp = src.getStack().getProcessor(roiPosition);
+    // mean value per ring around the centroid on imp, a slice of src
+    private double[] getRingValues(Channel_View src, ImageProcessor imp, int radius) {
+        // sum and number of pixels per ring
+        double[] sum = new double[radius + 1];
+        int[] count = new int[radius + 1];
+        int[] ring = new int[radius + 1]; // ring index per column offset of the current row
+
+        int xBase = (int) xCentroid;
+        int yBase = (int) yCentroid;
         for (int r = -radius; r <= radius; r++) {
+            ringRow(Math.abs(r), ring);
             for (int c = -radius; c <= radius; c++) {
-                int distance = (int) Math.round(Math.sqrt(r*r + c*c));
+                int distance = ring[Math.abs(c)];
                 if (distance <= radius) {
-                    int x = (int) xCentroid + r;
-                    int y = (int) yCentroid + c;
-                    allRingValues.get(distance).add(imp.getPixelValue(x, y));
+                    sum[distance] += src.getPixelValue(imp, xBase + r, yBase + c);
+                    count[distance]++;
                 }
             }
         }
 
-        double[] avgRingValues = new double[radius+1];
-        for (int i=0; i<allRingValues.size(); i++){
-            ArrayList<Float> currRing = allRingValues.get(i);
-            long sum = 0;
-            for (float intensity : currRing) {
-                sum += intensity;
-            }
-            avgRingValues[i] = sum / (double) currRing.size();
+        double[] avgRingValues = new double[radius + 1];
+        for (int i = 0; i < avgRingValues.length; i++) {
+            avgRingValues[i] = sum[i] / count[i];
         }
         return avgRingValues;
     }
 
-    private double[] getConvexHullValues(ImagePlus src, Roi roi, int radius) {
-        ImageProcessor mask = roi.getMask();
+    /**
+     * Ring index round(sqrt(dx * dx + dy * dy)) of the offsets dy = 0..ring.length - 1 of row dx.
+     * The index only grows with dy, so it is stepped up in integers from dx instead of one sqrt per pixel.
+     */
+    private static void ringRow(int dx, int[] ring) {
+        long d = dx;
+        for (int dy = 0; dy < ring.length; dy++) {
+            // round(sqrt(s)) > d while 4s >= (2d + 1)², sqrt(s) is never halfway for an integer s
+            long s4 = 4 * ((long) dx * dx + (long) dy * dy);
+            while (s4 >= (2 * d + 1) * (2 * d + 1)) d++;
+            ring[dy] = (int) d;
+        }
+    }
 
+    /**
+     * Distance bin of every pixel in the bounds of roi by its distance transform: 0 on the edge,
+     * -1 outside of the ROI. Depends on the ROI only, so it serves all channels and slices.
+     */
+    private static int[] surfaceBins(Roi roi) {
+        ImageProcessor mask = roi.getMask();
         Rectangle r = roi.getBounds();
-        ArrayList<ArrayList<Float>> allConvexHullValues = new ArrayList<>();
-        for (int i=0; i <= radius; i++) {
-            allConvexHullValues.add(new ArrayList<Float>());
-        }
-
-        ImageProcessor imp = src.getStack().getProcessor(roiPosition);
-        for (int y = 0; y <= r.width; y++) {
-            for (int x = 0; x <= r.height; x++) {
-                if (mask.getPixel(x,y)!=0) {
-                    double angle = Math.atan2(y - yCentroid, x - xCentroid);
-                    double cos = Math.cos(angle);
-                    double sin = Math.sin(angle);
-
-                    // binary search
-                    int low = 0, mid, high = radius;
-                    int x2, y2;
-                    while (low < high) {
-                        mid = (low + high) / 2;
-                        x2 = (int) Math.round(cos * mid) + x;
-                        y2 = (int) Math.round(sin * mid) + y;
-                        if (mask.getPixel(x2, y2) == 0) {
-                            high = mid - 1;
-                        } else {
-                            low = mid + 1;
-                        }
-                    }
+        byte[] maskPixels;
+        if (mask != null) maskPixels = (byte[]) mask.getPixels();
+        else {
+            maskPixels = new byte[r.width * r.height];
+            Arrays.fill(maskPixels, (byte) 255);
+        }
+        float[] distances = Distance_Transform.squared(maskPixels, r.width, r.height);
 
-                    // go back from here step by step until in selection again
-                    for(int length=high; length >=0;length--) {
-                        x2 = (int) (cos * length) + x;
-                        y2 = (int) (sin * length) + y;
-                        if (mask.getPixel(x2, y2) != 0) {
-                            double xDiff = x - x2;
-                            double yDiff = y - y2;
-                            int distance = (int) Math.round(Math.sqrt(xDiff*xDiff + yDiff*yDiff));
-                            allConvexHullValues.get(distance).add(imp.getPixelValue(r.x+x, r.y+y));
-                            break;
-                        }
-                    }
-                }
-            }
+        int[] bins = new int[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            bins[i] = maskPixels[i] != 0 ? (int) Math.round(Math.sqrt(distances[i])) - 1 : -1;
         }
+        return bins;
+    }
 
-        double[] avgValues = new double[allConvexHullValues.size()];
-        for (int i=0; i<allConvexHullValues.size(); i++){
-            ArrayList<Float> currRing = allConvexHullValues.get(i);
-            if(currRing.size() >0) {
-                long sum = 0;
-                for (float intensity : currRing) {
-                    sum += intensity;
-                }
-                avgValues[i] = sum / (double) currRing.size();
+    // number of bins of surfaceBins
+    private static int binCount(int[] bins) {
+        int maxBin = 0;
+        for (int bin : bins) {
+            if (bin > maxBin) maxBin = bin;
+        }
+        return maxBin + 1;
+    }
+
+    // mean value per distance from the edge of the ROI with bounds r on imp, a slice of src
+    private double[] getSurfaceDistanceValues(Channel_View src, ImageProcessor imp, Rectangle r, int[] bins, int length) {
+        double[] sum = new double[length];
+        int[] count = new int[length];
+        for (int y = 0; y < r.height; y++) {
+            for (int x = 0; x < r.width; x++) {
+                int bin = bins[y * r.width + x];
+                if (bin < 0) continue;
+                sum[bin] += src.getPixelValue(imp, r.x + x, r.y + y);
+                count[bin]++;
             }
         }
+
+        double[] avgValues = new double[length];
+        for (int i = 0; i < avgValues.length; i++) {
+            if (count[i] > 0) avgValues[i] = sum[i] / count[i];
+        }
         return avgValues;
     }
 
     private void addValuesToResultsTable(LinkedHashMap<String, Double> results) {
-        if (table==null) table = new ResultsTable();
-        table.incrementCounter();
-        table.addValue("Plot", plotTitle);
-        for (String s : results.keySet()) {
-            table.addValue(s, results.get(s));
-        }
-
-        Analyzer.setResultsTable(table);
-        table.show("Results");
+        target.addRow(new String[]{plotTitle}, results);
     }
 
     private double[] getMaxCoordinates(double[] values) {
@@ -557,9 +786,16 @@ class Multi_Plot{
         return radius;
     }
     private Roi roiToConvexHull(Roi roi, int variance) {
-        Rectangle bounds = roi.getBounds();
+        return enlarge(new PolygonRoi(roi.getConvexHull(),Roi.POLYGON), variance, roi.getBounds());
+    }
+
+    // roi enlarged by variance % of its diameter
+    private Roi enlarge(Roi roi, int variance) {
+        return enlarge(roi, variance, roi.getBounds());
+    }
+
+    private Roi enlarge(Roi roi, int variance, Rectangle bounds) {
         double diameter = bounds.getWidth() > bounds.getHeight() ? bounds.getWidth() : bounds.getHeight();
-        roi = new PolygonRoi(roi.getConvexHull(),Roi.POLYGON);
         return  RoiEnlarger.enlarge(roi, variance * diameter / 100);
     }
 }
@@ -4,7 +4,8 @@ import ij.gui.Roi;
 import ij.process.ImageProcessor;
 
 import java.awt.*;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Created on January 17, 2006, 10:11 AM
@@ -19,19 +20,35 @@ class Nuclei_Counter {
     private double threshold;              // Threshold
     private boolean darkPeaks;             // Select dark or light peaks
     private ImageProcessor ip;             // ImageProcessor for current image
+    private int channel;                   // Channel_View.GRAY or the channel of a color ip
     private ImageProcessor ipMask;
+    private Rectangle bounds;              // ROI bounds within the image
+    private int parallelism = 1;           // Threads for convolution and threshold
+    private int slice;                     // Stack position of the ROI
+    private String cacheKey;               // Source channel for the response cache, null if not cached
 
     //output fields
-    private ArrayList<Point> peaks;
+    private Peak_List peaks;
+
+    // idle work buffers, a counter takes one for its run and puts it back, see releaseBuffers
+    private static final ConcurrentLinkedQueue<Buffers> idleBuffers = new ConcurrentLinkedQueue<>();
+    private static volatile int buffersGeneration;
 
     Nuclei_Counter(ImagePlus imp, int width, double min_dist, double threshold, boolean darkPeaks) {
-        Roi roi = imp.getRoi();
-        int roiPosition = roi.getPosition();
-        if(imp.getStackSize() > 1 && roiPosition > 1) {
-            ip = imp.getStack().getProcessor(roiPosition);
-        } else ip = imp.getProcessor();
-        ip.setRoi(roi);
-        if(imp.getMask() != null ) ipMask = imp.getMask().duplicate();
+        this(new Channel_View(imp), imp.getRoi(), width, min_dist, threshold, darkPeaks);
+    }
+
+    /**
+     * Counts the peaks of roi in a channel without touching the ImagePlus,
+     * so counters for different ROIs of the same image can run concurrently.
+     */
+    Nuclei_Counter(Channel_View view, Roi roi, int width, double min_dist, double threshold, boolean darkPeaks) {
+        ip = view.getProcessor(roi);
+        channel = view.channel;
+        slice = view.getSlice(roi);
+        bounds = roi.getBounds().intersection(new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+        ImageProcessor mask = roi.getMask();
+        if(mask != null) ipMask = mask.duplicate();
 
         this.width = width;
         this.min_dist = min_dist;
@@ -39,29 +56,90 @@ class Nuclei_Counter {
         this.darkPeaks = darkPeaks;
     }
 
-    void run() {
-        double image[][];
+    // processor of the stack slice the ROI belongs to
+    static ImageProcessor processor(ImagePlus imp, Roi roi) {
+        int roiPosition = roi != null ? roi.getPosition() : 0;
+        if(imp.getStackSize() > 1 && roiPosition > 1) return imp.getStack().getProcessor(roiPosition);
+        return imp.getProcessor();
+    }
 
-        // Set ROI
-        Rectangle r = ip.getRoi();
+    // stack slice the ROI belongs to
+    static int slice(ImagePlus imp, Roi roi) {
+        int roiPosition = roi != null ? roi.getPosition() : 0;
+        if(imp.getStackSize() > 1 && roiPosition > 1) return roiPosition;
+        return imp.getCurrentSlice();
+    }
 
-        // Compute kernel
-        double[] kernel;
-        IJ.showStatus("Finding Kernel");
-        kernel = findKernel();
+    // number of threads for the convolution and threshold passes, the result does not depend on it
+    void setParallelism(int parallelism) {
+        this.parallelism = parallelism > 0 ? parallelism : 1;
+    }
 
-        // Convolution
-        IJ.showStatus("Convolution");
+    /**
+     * Caches the response map under the given source channel (see {@link Response_Cache#sourceKey}),
+     * so another run with a different threshold skips the convolution.
+     */
+    void setCacheKey(String sourceKey) {
+        this.cacheKey = sourceKey;
+    }
 
-        image = filter2(ip, kernel, width, width);
+    void run() {
+        Buffers buffers = idleBuffers.poll();
+        if (buffers == null || buffers.generation != buffersGeneration) buffers = new Buffers();
+        try {
+            run(buffers);
+        } finally {
+            if (buffers.generation == buffersGeneration) idleBuffers.offer(buffers);
+        }
+    }
 
-        for (int i = 0; i < ip.getWidth(); i++) {
-            for (int j = 0; j < ip.getHeight(); j++) {
-                if (image[i][j] < threshold) image[i][j] = 0; // used to be: '= threshold;'
-//                image[i][j] -= threshold;
-            }
+    /**
+     * Drops the work buffers, which are sized for the largest ROI so far, e.g. when an image is closed.
+     * Buffers of counters still running are dropped when they finish.
+     */
+    static void releaseBuffers() {
+        buffersGeneration++;
+        idleBuffers.clear();
+        Convolution_Engine.releaseWorkspaces();
+    }
+
+    private void run(Buffers buffers) {
+        // Set ROI
+        Rectangle r = bounds;
+
+        // response is needed for the ROI plus the neighborhood used to verify maxima
+        double epsilon = Math.floor((double) width / 3.0);
+        int margin = (int) epsilon;
+        Rectangle region = new Rectangle(r.x - margin, r.y - margin, r.width + 2 * margin, r.height + 2 * margin)
+                .intersection(new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+
+        int size = region.width * region.height;
+        String key = cacheKey != null ? Response_Cache.key(cacheKey, region, slice, width, darkPeaks) : null;
+        float[] cached = key != null ? Response_Cache.get(key) : null;
+
+        final float[] response;
+        if (cached != null) {
+            response = cached;
+        } else {
+            // Convolution, the kernel comes from Kernel_Cache
+            IJ.showStatus("Convolution");
+
+            response = filter2(ip, width, region, buffers);
+            if (key != null) Response_Cache.put(key, Arrays.copyOf(response, size));
         }
 
+        // threshold into a work buffer, the response itself stays untouched for the cache
+        final float[] image = buffers.thresholded(size);
+        final int rowLength = region.width;
+        Convolution_Engine.forEachBand(region.height, parallelism, new Convolution_Engine.Band() {
+            @Override
+            public void rows(int start, int end) {
+                for (int i = start * rowLength; i < end * rowLength; i++) {
+                    image[i] = response[i] < threshold ? 0 : response[i]; // used to be: '= threshold;'
+                }
+            }
+        });
+
         // Find Maximum
         IJ.showStatus("Finding Maximums");
 
@@ -70,30 +148,25 @@ class Nuclei_Counter {
             ipMask.dilate();
         }
 
-        // Create Mask
+        // Create Mask (row major, roi coordinates)
         int border = 1;
-        boolean[][] mask = new boolean[r.width][r.height];
+        boolean[] mask = buffers.mask(r.width * r.height);
 
-        for (int i = 0; i < r.width; i++) {
-            for (int j = 0; j < r.height; j++) {
-                mask[i][j] = !((ipMask != null && ipMask.getPixelValue(i, j) == 0) || i < border || i >= r.width - border || j < border || j >= r.height - border);
+        for (int j = 0; j < r.height; j++) {
+            for (int i = 0; i < r.width; i++) {
+                mask[i + r.width * j] = !((ipMask != null && ipMask.getPixelValue(i, j) == 0) || i < border || i >= r.width - border || j < border || j >= r.height - border);
             }
         }
 
         // Local Maximum
-        peaks = find_local_max(image, r, Math.floor((double) width / 3.0), min_dist, mask);
+        peaks = find_local_max(image, r, region, epsilon, min_dist, mask, buffers);
 
         // transform roi related coordinates to image based coordinates
-        int numberOfCells = peaks.size();
-        for (int i = 0; i < numberOfCells; i++) {
-            Point pt = peaks.get(i);
-            pt.x = pt.x + r.x;
-            pt.y = pt.y + r.y;
-            peaks.set(i,pt);
-        }
+        peaks.translate(r.x, r.y);
     }
 
-    private double[] findKernel() {
+    // LoG kernel of the given width, use Kernel_Cache.kernel(width) instead of calling this directly
+    static double[] findKernel(int width) {
         double[] hg = new double[width * width];
         double[] h = new double[width * width];
         double hgSum = 0, hSum = 0;
@@ -134,124 +207,155 @@ class Nuclei_Counter {
         return h;
     }
 
-    private double[][] filter2(ImageProcessor ip, double[] kern, int kh, int kw) {
+    // convolves the pixels of region plus a kernel sized halo with the LoG kernel of width kw,
+    // response is row major and relative to region
+    private float[] filter2(ImageProcessor ip, int kw, Rectangle region, Buffers buffers) {
         int imgW = ip.getWidth();
         int imgH = ip.getHeight();
 
-        byte[] pixels = (byte[]) ip.getPixels();
-        double pix;
-        double[][] dr = new double[imgW][imgH];
-
-        for (int x = 0; x < imgW; x++) {
-            for (int y = 0; y < imgH; y++) {
-                dr[x][y] = 0;
+        int o = (kw - 1) / 2;
+        Rectangle in = new Rectangle(region.x - o, region.y - o, region.width + kw - 1, region.height + kw - 1)
+                .intersection(new Rectangle(0, 0, imgW, imgH));
 
-                for (int i = 0; i < kw; i++) {
-                    for (int j = 0; j < kh; j++) {
-
-                        try {
-                            if ((x + i - (kw - 1) / 2) >= 0 && (x + i - (kw - 1) / 2) < imgW &&
-                                    (y + j - (kw - 1) / 2) >= 0 && (y + j - (kw - 1) / 2) < imgH) {
+        // 8, 16 and 32-bit pixels are read as levels (0..255), so the threshold means the same for all
+        Object pixels = ip.getPixels();
+        Pixel_Range range = Pixel_Range.of(ip, channel);
+        float[] src = buffers.source(in.width * in.height);
+        for (int y = 0; y < in.height; y++) {
+            range.readLevels(pixels, (y + in.y) * imgW + in.x, in.width, !darkPeaks, src, in.width * y);
+        }
 
-                                if (darkPeaks)
-                                    pix = (double) (0xff & pixels[(x + i - (kw - 1) / 2) + imgW * (y + j - (kw - 1) / 2)]);
-                                else
-                                    pix = 255.0 - (double) (0xff & pixels[(x + i - (kw - 1) / 2) + imgW * (y + j - (kw - 1) / 2)]);
+        float[] response = buffers.convolved(in.width * in.height);
+        Convolution_Engine.convolveLoG(src, in.width, in.height, kw, response, parallelism);
 
-                                dr[x][y] += kern[i + kw * j] * pix;
-                            }
-                        } catch (ArrayIndexOutOfBoundsException e) {
-                            IJ.showMessage("Array out of Bounds: (" + x + ", " + y + ") (" + i + ", " + j + ") ");
-                        }
-                    }
-                }
-            }
+        // crop the halo
+        float[] dr = buffers.response(region.width * region.height);
+        for (int y = 0; y < region.height; y++) {
+            System.arraycopy(response, (y + region.y - in.y) * in.width + region.x - in.x, dr, region.width * y, region.width);
         }
 
         return dr;
     }
 
-    private ArrayList<Point> find_local_max(double[][] image, Rectangle r, double epsilon, double min_dist, boolean[][] mask) {
-        ArrayList<Point> ind_n = new ArrayList<>();
-        ArrayList<Point> ind_n_ext = new ArrayList<>();
-
-        // prepare neighborhood indices
-        double n_dim = epsilon;
+    // neighborhood offsets as interleaved (dx, dy) pairs, use Kernel_Cache.neighborhood(epsilon)
+    static int[] neighborhood(double epsilon) {
+        int n_dim = (int) epsilon;
+        int[] ind_n = new int[2 * (2 * n_dim + 1) * (2 * n_dim + 1)];
+        int count = 0;
 
         for (double i = -n_dim; i <= n_dim; i++) {
             for (double j = -n_dim; j <= n_dim; j++) {
                 if (i != 0 && j != 0 && ((i * i + j * j) <= epsilon * epsilon)) {
-                    ind_n.add(new Point((int) i, (int) j));
+                    ind_n[count++] = (int) i;
+                    ind_n[count++] = (int) j;
                 }
             }
         }
 
-        // prepare extended neighborhood indices
-        n_dim = min_dist;
+        return Arrays.copyOf(ind_n, count);
+    }
 
-        for (int i = (int) (-n_dim); i <= n_dim; i++) {
-            for (int j = (int) (-n_dim); j <= n_dim; j++) {
-                if ((i * i + j * j) <= min_dist * min_dist) {
-                    ind_n_ext.add(new Point(i, j));
-                }
-            }
-        }
+    private Peak_List find_local_max(float[] image, Rectangle r, Rectangle region, double epsilon, double min_dist, boolean[] mask, Buffers buffers) {
+        // offset of the roi inside the response region
+        int ox = r.x - region.x;
+        int oy = r.y - region.y;
+        int rw = region.width;
 
-        ArrayList<Point> peaks = new ArrayList<>();
+        // prepare neighborhood indices
+        int[] ind_n = Kernel_Cache.neighborhood(epsilon);
 
-        double minimum = 0;
-        while (true) {
-            double maximum = minimum;
-            int x = 0, y = 0;
-            //int mx=0, my=0;
+        Peak_List peaks = new Peak_List();
 
+        // order all candidates above zero once, key follows the column wise scan order
+        Peak_Queue queue = buffers.queue();
+        for (int j = 0; j < r.height; j++) {
+            int row = (j + oy) * rw + ox;
             for (int i = 0; i < r.width; i++) {
-                for (int j = 0; j < r.height; j++) {
-                    if ((image[i + r.x][j + r.y] > maximum) && mask[i][j]) {
-                        maximum = image[i + r.x][j + r.y];
-                        x = i;
-                        y = j;
-                    }
-                }
+                if (mask[i + r.width * j] && image[row + i] > 0) queue.add(i * r.height + j, image[row + i]);
             }
+        }
 
-            if (maximum == minimum)
-                break;
-
-            // Verify it is a maximum
-            boolean flag = true;
-            for (Point ind_nPt : ind_n) {
+        Suppression_Grid suppressed = new Suppression_Grid(r.width, r.height, min_dist);
+        while (!queue.isEmpty()) {
+            // stop early if a preview has been superseded
+            if ((queue.size() & 1023) == 0 && Thread.currentThread().isInterrupted()) break;
 
-                if (!flag) break;
+            int key = queue.poll();
+            double maximum = queue.lastValue();
+            int x = key / r.height;
+            int y = key % r.height;
 
-                int nx = x + ind_nPt.x;
-                int ny = y + ind_nPt.y;
+            // suppressed by a stronger candidate
+            if (suppressed.isSuppressed(x, y)) continue;
 
-                flag = (maximum >= image[nx + r.x][ny + r.y]);
+            // Verify it is a maximum
+            boolean flag = true;
+            for (int n = 0; n < ind_n.length && flag; n += 2) {
+                int nx = x + ind_n[n] + ox;
+                int ny = y + ind_n[n + 1] + oy;
 
+                // neighbors outside the image can't be higher
+                if (nx >= 0 && nx < rw && ny >= 0 && ny < region.height)
+                    flag = (maximum >= image[nx + rw * ny]);
             }
 
             if (flag) {
-                peaks.add(new Point(x, y));
-            } else {
-                mask[x][y] = false;
-            }
-
-            for (Point ind_n_extPt : ind_n_ext) {
-                int nx = x + ind_n_extPt.x;
-                int ny = y + ind_n_extPt.y;
-
-                if (nx >= 0 && nx < r.width && ny >= 0 && ny < r.height) {
-                    mask[nx][ny] = false;
-                }
+                peaks.add(x, y, (float) maximum);
             }
 
+            // accepted or not, the candidate suppresses everything within min distance
+            suppressed.add(x, y);
         }
 
         return peaks;
     }
 
-    ArrayList<Point> getPeaks() {
+    /**
+     * Peaks in image coordinates with their LoG response. Whether a candidate becomes a peak does not depend
+     * on the threshold, so the peaks of a higher threshold are those of a lower one with a response at or above it.
+     */
+    Peak_List getPeaks() {
         return peaks;
     }
-}
\ No newline at end of file
+
+    // grow only, so a batch of ROIs and channels allocates them about once
+    private static class Buffers {
+        private final int generation = buffersGeneration;
+        private float[] source = new float[0];
+        private float[] convolved = new float[0];
+        private float[] response = new float[0];
+        private float[] thresholded = new float[0];
+        private boolean[] mask = new boolean[0];
+        private final Peak_Queue queue = new Peak_Queue(1024);
+
+        float[] source(int length) {
+            if (source.length < length) source = new float[length];
+            return source;
+        }
+
+        float[] convolved(int length) {
+            if (convolved.length < length) convolved = new float[length];
+            return convolved;
+        }
+
+        float[] response(int length) {
+            if (response.length < length) response = new float[length];
+            return response;
+        }
+
+        float[] thresholded(int length) {
+            if (thresholded.length < length) thresholded = new float[length];
+            return thresholded;
+        }
+
+        boolean[] mask(int length) {
+            if (mask.length < length) mask = new boolean[length];
+            return mask;
+        }
+
+        Peak_Queue queue() {
+            queue.clear();
+            return queue;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Peaks in parallel primitive arrays (x, y and LoG response) instead of one Point object per nucleus.
+ * Grows like an ArrayList, in the order the peaks are added.
+ */
+class Peak_List {
+
+    private int[] x;
+    private int[] y;
+    private float[] response;
+    private int size;
+
+    Peak_List() {
+        this(16);
+    }
+
+    Peak_List(int capacity) {
+        capacity = Math.max(capacity, 1);
+        x = new int[capacity];
+        y = new int[capacity];
+        response = new float[capacity];
+    }
+
+    void add(int px, int py, float value) {
+        if (size == x.length) {
+            int capacity = x.length << 1;
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            response = Arrays.copyOf(response, capacity);
+        }
+        x[size] = px;
+        y[size] = py;
+        response[size] = value;
+        size++;
+    }
+
+    // peak without a response
+    void add(int px, int py) {
+        add(px, py, Float.NaN);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getX(int i) {
+        return x[i];
+    }
+
+    int getY(int i) {
+        return y[i];
+    }
+
+    // LoG response of peak i, NaN if unknown
+    float getResponse(int i) {
+        return response[i];
+    }
+
+    // moves all peaks by (dx, dy), e.g. from ROI to image coordinates
+    void translate(int dx, int dy) {
+        for (int i = 0; i < size; i++) {
+            x[i] += dx;
+            y[i] += dy;
+        }
+    }
+
+    // copies of the coordinates, e.g. for a multi-point PointRoi
+    int[] xCoordinates() {
+        return Arrays.copyOf(x, size);
+    }
+
+    int[] yCoordinates() {
+        return Arrays.copyOf(y, size);
+    }
+
+    // approximate memory use, for the caches
+    long bytes() {
+        return 12L * x.length + 32;
+    }
+}
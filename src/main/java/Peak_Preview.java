@@ -0,0 +1,141 @@
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Live preview of the detected peaks while a threshold slider is moved.
+ * Slider changes are debounced, the peaks of the current ROI are found on a background thread
+ * from the cached response map (see {@link Response_Cache}) and drawn as an overlay on the EDT.
+ * A newer slider change cancels the computation that is still running. The preview is one element of
+ * the image overlay, other overlay elements and the selection of the image are left alone.
+ */
+class Peak_Preview {
+
+    private static final int DELAY = 150; // ms without slider movement before the preview starts
+
+    private final Spheroid_RGB main;
+    private final Timer timer;
+    private final ExecutorService executor;
+    private Future<?> running;
+    private int generation;
+    private String channel;
+    private ImagePlus shownOn; // image and overlay element of the preview on screen, null if none
+    private Roi shown;
+
+    Peak_Preview(Spheroid_RGB main) {
+        this.main = main;
+
+        timer = new Timer(DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                start();
+            }
+        });
+        timer.setRepeats(false);
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Spheroid RGB preview");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // called on the EDT for every slider change, channel is "red", "green", "blue" or "" for gray
+    void schedule(String channel) {
+        this.channel = channel;
+        timer.restart();
+    }
+
+    // stops a pending or running preview and removes the one on screen
+    void cancel() {
+        stop();
+        remove();
+    }
+
+    private void stop() {
+        timer.stop();
+        generation++;
+        if (running != null) running.cancel(true);
+    }
+
+    void dispose() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private void start() {
+        stop();
+
+        final ImagePlus image = main.image;
+        final Channel_View view = main.getPreviewChannel(channel);
+        if (image == null || view == null) return;
+        final Roi roi = image.getRoi();
+        if (roi == null || !roi.isArea()) return;
+
+        // the counter reads the settings here, on the EDT, the search runs in the background
+        double threshold = Table_Analyzer.toResponseThreshold(main.getThreshold(channel));
+        final Nuclei_Counter nucleiCounter = new Nuclei_Counter(view, roi, main.cellWidth, main.minDist, threshold, main.darkPeaks);
+        nucleiCounter.setParallelism(main.parallelism);
+        nucleiCounter.setCacheKey(Response_Cache.sourceKey(image, view.getTitle()));
+
+        final int current = generation;
+        running = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                nucleiCounter.run();
+                if (Thread.currentThread().isInterrupted()) return;
+                final Peak_List peaks = nucleiCounter.getPeaks();
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (current == generation) show(image, peaks);
+                    }
+                });
+            }
+        });
+    }
+
+    private void show(ImagePlus image, Peak_List peaks) {
+        remove();
+        if (peaks.size() == 0) return;
+
+        PointRoi points = new PointRoi(peaks.xCoordinates(), peaks.yCoordinates(), peaks.size());
+        points.setName("peak preview");
+        Overlay overlay = image.getOverlay();
+        if (overlay == null) {
+            overlay = new Overlay();
+            overlay.add(points);
+            image.setOverlay(overlay);
+        } else {
+            overlay.add(points);
+            image.draw();
+        }
+        shownOn = image;
+        shown = points;
+    }
+
+    private void remove() {
+        if (shownOn == null) return;
+        Overlay overlay = shownOn.getOverlay();
+        if (overlay != null && overlay.contains(shown)) {
+            overlay.remove(shown);
+            shownOn.draw();
+        }
+        shownOn = null;
+        shown = null;
+    }
+}
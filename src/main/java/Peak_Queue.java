@@ -0,0 +1,90 @@
+import java.util.Arrays;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Binary max-heap of peak candidates on primitive arrays.
+ * Candidates come out by descending value, equal values by ascending key,
+ * which is the order the old argmax scan of {@link Nuclei_Counter} visited them in.
+ */
+class Peak_Queue {
+
+    private int[] keys;
+    private double[] values;
+    private int size;
+    private double lastValue;
+
+    Peak_Queue(int capacity) {
+        keys = new int[capacity > 0 ? capacity : 1];
+        values = new double[keys.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void add(int key, double value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            values = Arrays.copyOf(values, size << 1);
+        }
+        int i = size++;
+        keys[i] = key;
+        values[i] = value;
+        siftUp(i);
+    }
+
+    // removes the best candidate and returns its key, its value is available from lastValue()
+    int poll() {
+        int key = keys[0];
+        lastValue = values[0];
+        size--;
+        if (size > 0) {
+            keys[0] = keys[size];
+            values[0] = values[size];
+            siftDown(0);
+        }
+        return key;
+    }
+
+    double lastValue() {
+        return lastValue;
+    }
+
+    private boolean before(int a, int b) {
+        return values[a] > values[b] || (values[a] == values[b] && keys[a] < keys[b]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!before(i, parent)) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = (i << 1) + 1;
+            if (left >= size) break;
+            int best = left + 1 < size && before(left + 1, left) ? left + 1 : left;
+            if (!before(best, i)) break;
+            swap(i, best);
+            i = best;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int k = keys[a]; keys[a] = keys[b]; keys[b] = k;
+        double v = values[a]; values[a] = values[b]; values[b] = v;
+    }
+}
@@ -0,0 +1,196 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Maps the pixel values of 8, 16 and 32-bit gray images onto the 0..255 threshold levels of the sliders.
+ * 8-bit images and RGB channels use 0..255 as before, 16 and 32-bit images the min and max pixel value of the processor.
+ * Rows are read straight from the short[], float[] and packed int[] pixel arrays, without a converted 8-bit copy.
+ * The min and max of a 16 or 32-bit slice are scanned once and kept per pixel array until {@link #invalidate(ImagePlus)},
+ * so a ROI does not pay for a pass over the whole image.
+ */
+class Pixel_Range {
+
+    final double min;
+    final double max;
+    private final int shift; // of the channel in packed RGB pixels
+
+    // scanned ranges of 16 and 32-bit pixel arrays, arrays compare by identity and are released with their image
+    private static final Map<Object, Pixel_Range> scanned = new WeakHashMap<>();
+
+    private Pixel_Range(double min, double max, int shift) {
+        this.min = min;
+        this.max = max;
+        this.shift = shift;
+    }
+
+    // range of a gray processor
+    static Pixel_Range of(ImageProcessor ip) {
+        return of(ip, Channel_View.GRAY);
+    }
+
+    // range of a gray processor or of one channel (Channel_View.RED, GREEN or BLUE) of a color processor
+    static Pixel_Range of(ImageProcessor ip, int channel) {
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) return new Pixel_Range(0, 255, 0);
+        if (pixels instanceof int[]) {
+            if (channel == Channel_View.GRAY) throw new IllegalArgumentException("RGB processor without channel");
+            return new Pixel_Range(0, 255, 16 - 8 * channel);
+        }
+
+        synchronized (scanned) {
+            Pixel_Range range = scanned.get(pixels);
+            if (range != null) return range;
+        }
+        Pixel_Range range = scan(pixels, ip.getWidth() * ip.getHeight());
+        synchronized (scanned) {
+            scanned.put(pixels, range);
+        }
+        return range;
+    }
+
+    // drops the scanned ranges of all slices of image, its pixels may have changed
+    static void invalidate(ImagePlus image) {
+        ImageStack stack = image.getStack();
+        synchronized (scanned) {
+            if (stack.isVirtual()) {
+                scanned.clear();
+                return;
+            }
+            for (int i = 1; i <= stack.getSize(); i++) scanned.remove(stack.getPixels(i));
+        }
+    }
+
+    // min and max of a short[] or float[] pixel array
+    private static Pixel_Range scan(Object pixels, int length) {
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        if (pixels instanceof short[]) {
+            short[] s = (short[]) pixels;
+            int lo = 65535, hi = 0;
+            for (int i = 0; i < length; i++) {
+                int v = s[i] & 0xffff;
+                if (v < lo) lo = v;
+                if (v > hi) hi = v;
+            }
+            min = lo;
+            max = hi;
+        } else if (pixels instanceof float[]) {
+            float[] f = (float[]) pixels;
+            for (int i = 0; i < length; i++) {
+                float v = f[i];
+                if (v < min) min = v; // NaN is skipped by both comparisons
+                if (v > max) max = v;
+            }
+        } else {
+            throw new IllegalArgumentException("not supported: " + pixels.getClass().getSimpleName());
+        }
+        if (min > max) min = max = 0;
+        return new Pixel_Range(min, max, 0);
+    }
+
+    // factor from pixel values to levels
+    double scale() {
+        return max > min ? 255.0 / (max - min) : 1.0;
+    }
+
+    // threshold level (0..255) to pixel value
+    double toPixel(double level) {
+        return min + level / scale();
+    }
+
+    // pixel value to threshold level (0..255)
+    double toLevel(double value) {
+        return (value - min) * scale();
+    }
+
+    /**
+     * Copies length pixels starting at offset into row as levels (0..255), inverted to 255 - level if invert is set.
+     * 8-bit values are copied unchanged.
+     */
+    void readLevels(Object pixels, int offset, int length, boolean invert, float[] row, int rowOffset) {
+        if (pixels instanceof byte[]) {
+            byte[] b = (byte[]) pixels;
+            for (int x = 0; x < length; x++) {
+                if (invert) row[rowOffset + x] = 255.0f - (float) (0xff & b[offset + x]);
+                else row[rowOffset + x] = (float) (0xff & b[offset + x]);
+            }
+        } else if (pixels instanceof int[]) {
+            int[] c = (int[]) pixels;
+            for (int x = 0; x < length; x++) {
+                if (invert) row[rowOffset + x] = 255.0f - (float) (0xff & (c[offset + x] >> shift));
+                else row[rowOffset + x] = (float) (0xff & (c[offset + x] >> shift));
+            }
+        } else if (pixels instanceof short[]) {
+            short[] s = (short[]) pixels;
+            double scale = scale();
+            for (int x = 0; x < length; x++) {
+                float level = (float) (((s[offset + x] & 0xffff) - min) * scale);
+                row[rowOffset + x] = invert ? 255.0f - level : level;
+            }
+        } else {
+            float[] f = (float[]) pixels;
+            double scale = scale();
+            for (int x = 0; x < length; x++) {
+                float level = (float) ((f[offset + x] - min) * scale);
+                row[rowOffset + x] = invert ? 255.0f - level : level;
+            }
+        }
+    }
+
+    // 256 bin histogram of the levels, same as ImageProcessor.getHistogram() for 8-bit images
+    int[] histogram(ImageProcessor ip) {
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) return ip.getHistogram();
+
+        int[] histogram = new int[256];
+        int length = ip.getWidth() * ip.getHeight();
+        double scale = scale();
+        if (pixels instanceof int[]) {
+            int[] c = (int[]) pixels;
+            for (int i = 0; i < length; i++) {
+                histogram[0xff & (c[i] >> shift)]++;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] s = (short[]) pixels;
+            for (int i = 0; i < length; i++) {
+                int bin = (int) (((s[i] & 0xffff) - min) * scale);
+                histogram[bin > 255 ? 255 : bin]++;
+            }
+        } else {
+            float[] f = (float[]) pixels;
+            for (int i = 0; i < length; i++) {
+                if (Float.isNaN(f[i])) continue;
+                int bin = (int) ((f[i] - min) * scale);
+                histogram[bin > 255 ? 255 : bin]++;
+            }
+        }
+        return histogram;
+    }
+
+    // copies length raw pixel values starting at offset into row, the values the thresholds compare with
+    void readValues(Object pixels, int offset, int length, float[] row) {
+        if (pixels instanceof int[]) {
+            int[] c = (int[]) pixels;
+            for (int x = 0; x < length; x++) row[x] = 0xff & (c[offset + x] >> shift);
+        } else if (pixels instanceof byte[]) {
+            byte[] b = (byte[]) pixels;
+            for (int x = 0; x < length; x++) row[x] = b[offset + x] & 0xff;
+        } else if (pixels instanceof short[]) {
+            short[] s = (short[]) pixels;
+            for (int x = 0; x < length; x++) row[x] = s[offset + x] & 0xffff;
+        } else {
+            System.arraycopy((float[]) pixels, offset, row, 0, length);
+        }
+    }
+
+    // calibrated value of a raw value of readValues (same as ImageProcessor.getPixelValue), cTable may be null
+    static float calibrated(float raw, float[] cTable) {
+        return cTable != null ? cTable[(int) raw] : raw;
+    }
+}
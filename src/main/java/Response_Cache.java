@@ -0,0 +1,69 @@
+import ij.ImagePlus;
+
+import java.awt.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Least recently used cache of LoG response maps, before thresholding.
+ * Keys start with the ID of the source image, so all maps of an image can be dropped
+ * when it is updated or closed (see {@link Spheroid_RGB#imageUpdated(ImagePlus)}).
+ */
+class Response_Cache {
+
+    private static final long MAX_BYTES = Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 8);
+
+    private static final LinkedHashMap<String, float[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytes;
+
+    // identifies one channel of a source image
+    static String sourceKey(ImagePlus source, String channel) {
+        return source.getID() + ":" + channel;
+    }
+
+    // identifies one response map of a channel
+    static String key(String sourceKey, Rectangle region, int slice, int width, boolean darkPeaks) {
+        return sourceKey + "|" + region.x + "," + region.y + "," + region.width + "," + region.height
+                + "|" + slice + "|" + width + "|" + darkPeaks;
+    }
+
+    static synchronized float[] get(String key) {
+        return cache.get(key);
+    }
+
+    static synchronized void put(String key, float[] response) {
+        long size = 4L * response.length;
+        if (size > MAX_BYTES) return;
+
+        float[] old = cache.put(key, response);
+        if (old != null) bytes -= 4L * old.length;
+        bytes += size;
+
+        // evict least recently used
+        Iterator<float[]> it = cache.values().iterator();
+        while (bytes > MAX_BYTES && it.hasNext()) {
+            bytes -= 4L * it.next().length;
+            it.remove();
+        }
+    }
+
+    static synchronized void invalidate(ImagePlus source) {
+        String prefix = source.getID() + ":";
+        Iterator<Map.Entry<String, float[]>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, float[]> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                bytes -= 4L * entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    static synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,241 @@
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Content addressed cache of ROI results (values and peaks), so analyzing again after adding a ROI only
+ * computes the new one. Keys hold a hash of the pixels the result depends on, the ROI geometry and all
+ * parameters, so they never go stale and entries of one image also serve an identical copy of it.
+ * Least recently used entries are evicted from memory above MAX_BYTES. With {@link #setDirectory(File)}
+ * results are also kept on disk, one file per key, least recently used files go above MAX_DISK_BYTES.
+ * Only the memory map and the disk accounting are locked, workers read and write their files concurrently.
+ */
+class Result_Cache {
+
+    private static final long MAX_BYTES = Math.min(64L << 20, Runtime.getRuntime().maxMemory() / 32);
+    private static final long MAX_DISK_BYTES = 512L << 20;
+    private static final int VERSION = 4;
+
+    // the memory cache and bytes are guarded by cache, diskBytes and eviction by diskLock, file reads and writes by neither
+    private static final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytes;
+    private static final Object diskLock = new Object();
+    private static volatile File directory;
+    private static long diskBytes;
+
+    // values and peaks per channel of one ROI, not to be modified once cached
+    static class Entry {
+        final LinkedHashMap<String, Double> values;
+        final ArrayList<Peak_List> peaks;
+
+        Entry(LinkedHashMap<String, Double> values, ArrayList<Peak_List> peaks) {
+            this.values = values;
+            this.peaks = peaks;
+        }
+
+        long bytes() {
+            long size = 64L * values.size();
+            for (Peak_List p : peaks) size += p.bytes();
+            return size;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the pixels of ip inside region (row by row), for the keys.
+     * The packed pixels of a color processor are hashed as they are, for all channels.
+     */
+    static long pixelHash(ImageProcessor ip, Rectangle region) {
+        Object pixels = ip.getPixels();
+        int width = ip.getWidth();
+        long h = 0xcbf29ce484222325L;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int offset = y * width;
+            if (pixels instanceof byte[]) {
+                byte[] b = (byte[]) pixels;
+                for (int x = region.x; x < region.x + region.width; x++) h = (h ^ (b[offset + x] & 0xff)) * 0x100000001b3L;
+            } else if (pixels instanceof short[]) {
+                short[] s = (short[]) pixels;
+                for (int x = region.x; x < region.x + region.width; x++) h = (h ^ (s[offset + x] & 0xffff)) * 0x100000001b3L;
+            } else if (pixels instanceof int[]) {
+                int[] c = (int[]) pixels;
+                for (int x = region.x; x < region.x + region.width; x++) h = (h ^ c[offset + x]) * 0x100000001b3L;
+            } else {
+                float[] f = (float[]) pixels;
+                for (int x = region.x; x < region.x + region.width; x++) h = (h ^ Float.floatToIntBits(f[offset + x])) * 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    // also keep results in dir (created if needed), null for memory only
+    static void setDirectory(File dir) {
+        synchronized (diskLock) {
+            directory = null;
+            diskBytes = 0;
+            if (dir == null) return;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                IJ.log("Result_Cache: can't create " + dir + ", memory only");
+                return;
+            }
+            for (File file : cacheFiles(dir)) diskBytes += file.length();
+            directory = dir;
+        }
+    }
+
+    static Entry get(String key) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        File dir = directory;
+        if (entry == null && dir != null) {
+            entry = read(dir, key);
+            if (entry != null) putInMemory(key, entry);
+        }
+        return entry;
+    }
+
+    static void put(String key, Entry entry) {
+        putInMemory(key, entry);
+        File dir = directory;
+        if (dir != null) write(dir, key, entry);
+    }
+
+    private static void putInMemory(String key, Entry entry) {
+        long size = entry.bytes();
+        if (size > MAX_BYTES) return;
+
+        synchronized (cache) {
+            Entry old = cache.put(key, entry);
+            if (old != null) bytes -= old.bytes();
+            bytes += size;
+
+            // evict least recently used
+            Iterator<Entry> it = cache.values().iterator();
+            while (bytes > MAX_BYTES && it.hasNext()) {
+                bytes -= it.next().bytes();
+                it.remove();
+            }
+        }
+    }
+
+    /********************************************************
+     * 														*
+     *						DISK CACHE						*
+     *														*
+     ********************************************************/
+
+    // file of a key, the key itself is stored inside to tell hash collisions apart
+    private static File file(File dir, String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        return new File(dir, String.format("%016x.result", h));
+    }
+
+    private static File[] cacheFiles(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".result");
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private static Entry read(File dir, String key) {
+        File file = file(dir, key);
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(key)) return null;
+            LinkedHashMap<String, Double> values = new LinkedHashMap<>();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) values.put(in.readUTF(), in.readDouble());
+            ArrayList<Peak_List> peaks = new ArrayList<>();
+            int channels = in.readInt();
+            for (int c = 0; c < channels; c++) {
+                int count = in.readInt();
+                Peak_List p = new Peak_List(count);
+                for (int i = 0; i < count; i++) p.add(in.readInt(), in.readInt(), in.readFloat());
+                peaks.add(p);
+            }
+            // least recently used is by modification time
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(values, peaks);
+        } catch (IOException e) {
+            // also a file evicted while reading, the result is computed again
+            IJ.log("Result_Cache: can't read " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // written to a temporary file and moved into place, so readers and other writers of the key never see half a file
+    private static void write(File dir, String key, Entry entry) {
+        File file = file(dir, key);
+        File temp = null;
+        try {
+            temp = File.createTempFile("result", ".tmp", dir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeInt(entry.values.size());
+                for (Map.Entry<String, Double> value : entry.values.entrySet()) {
+                    out.writeUTF(value.getKey());
+                    out.writeDouble(value.getValue());
+                }
+                out.writeInt(entry.peaks.size());
+                for (Peak_List p : entry.peaks) {
+                    out.writeInt(p.size());
+                    for (int i = 0; i < p.size(); i++) {
+                        out.writeInt(p.getX(i));
+                        out.writeInt(p.getY(i));
+                        out.writeFloat(p.getResponse(i));
+                    }
+                }
+            }
+            long old = file.length();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (diskLock) {
+                if (directory != dir) return;
+                diskBytes += file.length() - old;
+                if (diskBytes > MAX_DISK_BYTES) evictFiles(dir);
+            }
+        } catch (IOException e) {
+            IJ.log("Result_Cache: can't write " + file + ": " + e.getMessage());
+            if (temp != null) temp.delete();
+        }
+    }
+
+    // deletes least recently used files until 3/4 of MAX_DISK_BYTES are left, called with diskLock held
+    private static void evictFiles(File dir) {
+        File[] files = cacheFiles(dir);
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        for (int i = 0; i < order.length && diskBytes > MAX_DISK_BYTES / 4 * 3; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) diskBytes -= length;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import ij.measure.ResultsTable;
+import ij.plugin.filter.Analyzer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Buffer of result rows during a run, published to the ResultsTable once at the end
+ * (or every INTERVAL ms for progress) instead of showing the table after every row.
+ * A row is a few text labels plus (column, value) pairs kept in flat primitive arrays.
+ */
+class Result_Rows {
+
+    private static final long INTERVAL = 1000; // ms between two publications during a run
+
+    private final String[] labelHeadings;
+    private final LinkedHashMap<String, Integer> columns = new LinkedHashMap<>();
+    private String[] columnNames = new String[16];
+
+    private String[] labels = new String[16];
+    private int[] rowStart = new int[9];   // rowStart[i] .. rowStart[i + 1] are the entries of row i
+    private int[] entryColumn = new int[64];
+    private double[] entryValue = new double[64];
+    private int rows;
+    private int entries;
+    private long lastPublished = System.currentTimeMillis();
+
+    // labelHeadings are the text columns in front of the values, e.g. "Image", "ROI"
+    Result_Rows(String... labelHeadings) {
+        this.labelHeadings = labelHeadings;
+    }
+
+    void addRow(String[] rowLabels, LinkedHashMap<String, Double> values) {
+        int n = labelHeadings.length;
+        if ((rows + 1) * n > labels.length) labels = Arrays.copyOf(labels, Math.max(labels.length << 1, (rows + 1) * n));
+        System.arraycopy(rowLabels, 0, labels, rows * n, n);
+
+        if (rows + 2 > rowStart.length) rowStart = Arrays.copyOf(rowStart, rowStart.length << 1);
+        if (entries + values.size() > entryColumn.length) {
+            int capacity = Math.max(entryColumn.length << 1, entries + values.size());
+            entryColumn = Arrays.copyOf(entryColumn, capacity);
+            entryValue = Arrays.copyOf(entryValue, capacity);
+        }
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            entryColumn[entries] = column(entry.getKey());
+            entryValue[entries] = entry.getValue();
+            entries++;
+        }
+        rows++;
+        rowStart[rows] = entries;
+    }
+
+    private int column(String heading) {
+        Integer index = columns.get(heading);
+        if (index == null) {
+            index = columns.size();
+            columns.put(heading, index);
+            if (index == columnNames.length) columnNames = Arrays.copyOf(columnNames, index << 1);
+            columnNames[index] = heading;
+        }
+        return index;
+    }
+
+    int size() {
+        return rows;
+    }
+
+    // true if the last publication is at least INTERVAL ms ago
+    boolean isPublishDue() {
+        return rows > 0 && System.currentTimeMillis() - lastPublished >= INTERVAL;
+    }
+
+    // appends the buffered rows to table, shows it once and empties the buffer
+    void publish(ResultsTable table, String title) {
+        appendTo(table);
+        Analyzer.setResultsTable(table);
+        table.show(title);
+    }
+
+    // appends the buffered rows to table without showing it and empties the buffer
+    void appendTo(ResultsTable table) {
+        int n = labelHeadings.length;
+        for (int i = 0; i < rows; i++) {
+            table.incrementCounter();
+            for (int j = 0; j < n; j++) {
+                table.addValue(labelHeadings[j], labels[i * n + j]);
+            }
+            for (int e = rowStart[i]; e < rowStart[i + 1]; e++) {
+                table.addValue(columnNames[entryColumn[e]], entryValue[e]);
+            }
+        }
+        rows = 0;
+        entries = 0;
+        lastPublished = System.currentTimeMillis();
+    }
+
+    // writes the buffered rows to writer and empties the buffer
+    void writeTo(Result_Writer writer) throws IOException {
+        int n = labelHeadings.length;
+        String[] rowLabels = new String[n];
+        String[] headings = new String[entries];
+        for (int e = 0; e < entries; e++) headings[e] = columnNames[entryColumn[e]];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(labels, i * n, rowLabels, 0, n);
+            writer.writeRow(rowLabels, headings, entryValue, rowStart[i], rowStart[i + 1]);
+        }
+        rows = 0;
+        entries = 0;
+        lastPublished = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Streams result rows to a CSV file (TSV for .tsv, .txt and .xls) instead of collecting them in a ResultsTable,
+ * so memory stays flat however many rows a batch writes. The columns are fixed when the file is opened,
+ * rows go through a buffered writer that is flushed every FLUSH_INTERVAL ms.
+ */
+class Result_Writer implements Closeable {
+
+    private static final long FLUSH_INTERVAL = 2000; // ms
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Writer out;
+    private final char delimiter;
+    private final int labelCount;
+    private final HashMap<String, Integer> columns = new HashMap<>();
+    private final double[] values;
+    private final boolean[] set;
+    private final StringBuilder line = new StringBuilder(256);
+    private long lastFlush = System.currentTimeMillis();
+    private long rows;
+
+    /**
+     * @param file          created or overwritten
+     * @param labelHeadings text columns in front of the values, e.g. "Image", "ROI"
+     * @param headings      value columns, see Table_Analyzer.columns and Multi_Plot.columns
+     */
+    Result_Writer(File file, String[] labelHeadings, String[] headings) throws IOException {
+        String name = file.getName().toLowerCase();
+        delimiter = name.endsWith(".tsv") || name.endsWith(".txt") || name.endsWith(".xls") ? '\t' : ',';
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8), 1 << 16);
+        labelCount = labelHeadings.length;
+        values = new double[headings.length];
+        set = new boolean[headings.length];
+
+        for (int i = 0; i < labelHeadings.length; i++) {
+            if (i > 0) line.append(delimiter);
+            appendText(labelHeadings[i]);
+        }
+        for (int i = 0; i < headings.length; i++) {
+            columns.put(headings[i], i);
+            line.append(delimiter);
+            appendText(headings[i]);
+        }
+        out.write(line.append('\n').toString());
+    }
+
+    // writes one row, a heading without a column is an error rather than a dropped value
+    void writeRow(String[] labels, String[] headings, double[] rowValues, int from, int to) throws IOException {
+        Arrays.fill(set, false);
+        for (int e = from; e < to; e++) {
+            Integer column = columns.get(headings[e]);
+            if (column == null) throw new IllegalArgumentException("no column for \"" + headings[e] + "\"");
+            values[column] = rowValues[e];
+            set[column] = true;
+        }
+
+        line.setLength(0);
+        for (int i = 0; i < labelCount; i++) {
+            if (i > 0) line.append(delimiter);
+            appendText(labels[i]);
+        }
+        for (int i = 0; i < values.length; i++) {
+            line.append(delimiter);
+            if (set[i]) appendNumber(values[i]);
+        }
+        out.write(line.append('\n').toString());
+        rows++;
+
+        if (System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+            out.flush();
+            lastFlush = System.currentTimeMillis();
+        }
+    }
+
+    // number of rows written
+    long size() {
+        return rows;
+    }
+
+    // quoted if it holds the delimiter, a quote or a line break
+    private void appendText(String text) {
+        if (text == null) return;
+        boolean quote = text.indexOf(delimiter) >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0;
+        if (!quote) {
+            line.append(text);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') line.append('"');
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    // integers without decimals, everything else at full precision
+    private void appendNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) line.append((long) value);
+        else line.append(value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,165 @@
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Threshold histograms of all channels inside one ROI, so mean, area and integrated density can be
+ * answered for any slider level (0..255) without another pass over the pixels.
+ * Bin b of a channel holds the pixels that pass the thresholds of the levels 0..b-1 and fail the others,
+ * with the comparisons of {@link Roi_Statistics}, so the results are the same as a pass at that level.
+ * Like there, the raw pixel values are compared with the thresholds and the means are of calibrated values.
+ * A joint 256 x 256 histogram of one channel pair gives the ratio mean when both channels hold
+ * integer levels (8-bit without calibration, RGB channels); other bit depths have no joint histogram.
+ */
+class Roi_Histogram {
+
+    private static final int BINS = 257;
+
+    private final int channels;
+    private final boolean darkPeaks;
+    private final double[] count;  // channels * BINS, pixels in bin b and above
+    private final double[] sum;    // channels * BINS, sum of their values
+    private long total;
+    private final int numerator;
+    private final int denominator;
+    private final int[] joint;     // 256 * 256, [numerator level * 256 + denominator level], null without ratios
+
+    /**
+     * @param ips         one processor per channel, all of the same size
+     * @param ranges      per channel, reads the pixels of ips (see Channel_View.range)
+     * @param roi         area ROI, null for the whole image
+     * @param darkPeaks   upper (dark) instead of lower thresholds
+     * @param numerator   channel of the ratio numerator, -1 to skip the ratio
+     * @param denominator channel of the ratio denominator
+     */
+    Roi_Histogram(ImageProcessor[] ips, Pixel_Range[] ranges, Roi roi, boolean darkPeaks, int numerator, int denominator) {
+        channels = ips.length;
+        this.darkPeaks = darkPeaks;
+        count = new double[channels * BINS];
+        sum = new double[channels * BINS];
+        boolean ratio = numerator >= 0 && isLevels(ips[numerator]) && isLevels(ips[denominator]);
+        this.numerator = ratio ? numerator : -1;
+        this.denominator = ratio ? denominator : -1;
+        joint = ratio ? new int[256 * 256] : null;
+
+        if (roi != null && !roi.isArea()) roi = null;
+        int imgW = ips[0].getWidth();
+        Rectangle r = roi != null ? roi.getBounds() : new Rectangle(0, 0, imgW, ips[0].getHeight());
+        r = r.intersection(new Rectangle(0, 0, imgW, ips[0].getHeight()));
+        ImageProcessor mask = roi != null ? roi.getMask() : null;
+        byte[] maskPixels = mask != null ? (byte[]) mask.getPixels() : null;
+        Rectangle bounds = roi != null ? roi.getBounds() : r;
+
+        // thresholds[c][t] is the raw pixel value of level t, the other bound is the same for all levels
+        Object[] pixels = new Object[channels];
+        float[][] cTables = new float[channels][];
+        float[][] rows = new float[channels][r.width];
+        double[][] thresholds = new double[channels][256];
+        double[] bound = new double[channels];
+        for (int c = 0; c < channels; c++) {
+            pixels[c] = ips[c].getPixels();
+            cTables[c] = ips[c].getCalibrationTable();
+            for (int t = 0; t < 256; t++) thresholds[c][t] = ranges[c].toPixel(darkPeaks ? 255 - t : t);
+            bound[c] = darkPeaks ? ranges[c].min : ranges[c].max;
+        }
+
+        for (int y = 0; y < r.height; y++) {
+            int offset = (y + r.y) * imgW + r.x;
+            for (int c = 0; c < channels; c++) {
+                ranges[c].readValues(pixels[c], offset, r.width, rows[c]);
+            }
+            int m = (y + r.y - bounds.y) * bounds.width + r.x - bounds.x;
+            for (int x = 0; x < r.width; x++) {
+                if (maskPixels != null && maskPixels[m + x] == 0) continue;
+                total++;
+                for (int c = 0; c < channels; c++) {
+                    float value = rows[c][x];
+                    int bin = bin(value, thresholds[c], bound[c], ranges[c]);
+                    count[c * BINS + bin]++;
+                    sum[c * BINS + bin] += Pixel_Range.calibrated(value, cTables[c]);
+                }
+                if (joint != null) joint[(int) rows[numerator][x] * 256 + (int) rows[denominator][x]]++;
+            }
+        }
+
+        // cumulate from the top, bin b then holds all pixels passing level b - 1
+        for (int c = 0; c < channels; c++) {
+            for (int b = BINS - 2; b >= 0; b--) {
+                count[c * BINS + b] += count[c * BINS + b + 1];
+                sum[c * BINS + b] += sum[c * BINS + b + 1];
+            }
+        }
+    }
+
+    // pixels hold the levels 0..255 themselves
+    private static boolean isLevels(ImageProcessor ip) {
+        Object pixels = ip.getPixels();
+        return pixels instanceof int[] || pixels instanceof byte[] && ip.getCalibrationTable() == null;
+    }
+
+    // number of levels the value passes, 0 for values outside the range (and NaN)
+    private int bin(float value, double[] thresholds, double bound, Pixel_Range range) {
+        if (darkPeaks ? !(value >= bound) : !(value <= bound)) return 0;
+
+        // guess from the level, then step to the exact comparison
+        double level = range.toLevel(value);
+        int b = darkPeaks ? 256 - (int) Math.ceil(level) : (int) level + 1;
+        if (b < 0) b = 0;
+        if (b > 256) b = 256;
+        if (darkPeaks) {
+            while (b < 256 && value <= thresholds[b]) b++;
+            while (b > 0 && !(value <= thresholds[b - 1])) b--;
+        } else {
+            while (b < 256 && value >= thresholds[b]) b++;
+            while (b > 0 && !(value >= thresholds[b - 1])) b--;
+        }
+        return b;
+    }
+
+    // mean of the pixels within the threshold range of level
+    double mean(int channel, int level) {
+        return sum[channel * BINS + level + 1] / count[channel * BINS + level + 1];
+    }
+
+    // number of pixels within the threshold range of level
+    double area(int channel, int level) {
+        return count[channel * BINS + level + 1];
+    }
+
+    double integratedDensity(int channel, int level) {
+        return mean(channel, level) * area(channel, level);
+    }
+
+    // number of pixels in the ROI
+    double totalArea() {
+        return total;
+    }
+
+    // true if ratioMean can answer the pair
+    boolean hasRatio(int numerator, int denominator) {
+        return joint != null && numerator == this.numerator && denominator == this.denominator;
+    }
+
+    // mean of value(numerator) / value(denominator) over pixels with both levels in minLevel..maxLevel
+    double ratioMean(int minLevel, int maxLevel) {
+        double ratioSum = 0;
+        long ratioCount = 0;
+        for (int i = minLevel; i <= maxLevel; i++) {
+            for (int j = minLevel; j <= maxLevel; j++) {
+                int n = joint[i * 256 + j];
+                if (n == 0) continue;
+                ratioSum += n * (double) ((float) i / (float) j);
+                ratioCount += n;
+            }
+        }
+        return ratioSum / ratioCount;
+    }
+
+    // approximate memory use, for the cache
+    long bytes() {
+        return 16L * channels * BINS + (joint != null ? 4L * joint.length : 0);
+    }
+}
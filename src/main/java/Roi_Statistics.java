@@ -0,0 +1,132 @@
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Threshold statistics of all channels inside one ROI, computed in a single pass over the raw pixel arrays.
+ * Per channel: mean, number of pixels within the threshold range, min and max, and the total number of ROI pixels.
+ * Per ordered channel pair (i, j): mean of value i / value j over pixels within the ratio range of both channels.
+ * Thresholds, min and max are raw pixel values (see Pixel_Range), means and ratios are of calibrated values.
+ */
+class Roi_Statistics {
+
+    private final int channels;
+    private final double[] sum;
+    private final long[] count;
+    private final double[] minValue;
+    private final double[] maxValue;
+    private long total;
+    private final double[] ratioSum;  // channels * channels, [i * channels + j]
+    private final long[] ratioCount;
+
+    /**
+     * @param ips        one processor per channel, all of the same size
+     * @param ranges     per channel, reads the pixels of ips (see Channel_View.range)
+     * @param roi        area ROI, null for the whole image
+     * @param min        per channel lower threshold in raw pixel values (inclusive)
+     * @param max        per channel upper threshold in raw pixel values (inclusive)
+     * @param ratioMin   per channel lower ratio threshold, null to skip the ratios
+     * @param ratioMax   per channel upper ratio threshold, null to skip the ratios
+     */
+    Roi_Statistics(ImageProcessor[] ips, Pixel_Range[] ranges, Roi roi, double[] min, double[] max,
+                   double[] ratioMin, double[] ratioMax) {
+        channels = ips.length;
+        sum = new double[channels];
+        count = new long[channels];
+        minValue = new double[channels];
+        maxValue = new double[channels];
+        Arrays.fill(minValue, Double.MAX_VALUE);
+        Arrays.fill(maxValue, -Double.MAX_VALUE);
+        ratioSum = new double[channels * channels];
+        ratioCount = new long[channels * channels];
+
+        if (roi != null && !roi.isArea()) roi = null;
+        int imgW = ips[0].getWidth();
+        Rectangle r = roi != null ? roi.getBounds() : new Rectangle(0, 0, imgW, ips[0].getHeight());
+        r = r.intersection(new Rectangle(0, 0, imgW, ips[0].getHeight()));
+        ImageProcessor mask = roi != null ? roi.getMask() : null;
+        byte[] maskPixels = mask != null ? (byte[]) mask.getPixels() : null;
+        Rectangle bounds = roi != null ? roi.getBounds() : r;
+
+        Object[] pixels = new Object[channels];
+        float[][] cTables = new float[channels][];
+        float[][] rows = new float[channels][r.width];
+        float[][] values = new float[channels][r.width];
+        for (int c = 0; c < channels; c++) {
+            pixels[c] = ips[c].getPixels();
+            cTables[c] = ips[c].getCalibrationTable();
+        }
+        boolean ratios = ratioMin != null && channels >= 2;
+        boolean[] inRatio = new boolean[channels];
+
+        for (int y = 0; y < r.height; y++) {
+            int offset = (y + r.y) * imgW + r.x;
+            for (int c = 0; c < channels; c++) {
+                ranges[c].readValues(pixels[c], offset, r.width, rows[c]);
+                for (int x = 0; x < r.width; x++) values[c][x] = Pixel_Range.calibrated(rows[c][x], cTables[c]);
+            }
+            int m = (y + r.y - bounds.y) * bounds.width + r.x - bounds.x;
+            for (int x = 0; x < r.width; x++) {
+                if (maskPixels != null && maskPixels[m + x] == 0) continue;
+                total++;
+                for (int c = 0; c < channels; c++) {
+                    float raw = rows[c][x];
+                    if (raw < minValue[c]) minValue[c] = raw;
+                    if (raw > maxValue[c]) maxValue[c] = raw;
+                    if (raw >= min[c] && raw <= max[c]) {
+                        sum[c] += values[c][x];
+                        count[c]++;
+                    }
+                    if (ratios) inRatio[c] = raw >= ratioMin[c] && raw <= ratioMax[c];
+                }
+                if (!ratios) continue;
+                for (int i = 0; i < channels; i++) {
+                    if (!inRatio[i]) continue;
+                    for (int j = 0; j < channels; j++) {
+                        if (j == i || !inRatio[j]) continue;
+                        ratioSum[i * channels + j] += values[i][x] / values[j][x];
+                        ratioCount[i * channels + j]++;
+                    }
+                }
+            }
+        }
+    }
+
+    // mean of the pixels within the threshold range
+    double mean(int channel) {
+        return sum[channel] / count[channel];
+    }
+
+    // number of pixels within the threshold range
+    double area(int channel) {
+        return count[channel];
+    }
+
+    // min of the ROI pixels, raw
+    double min(int channel) {
+        return minValue[channel];
+    }
+
+    // max of the ROI pixels, raw
+    double max(int channel) {
+        return maxValue[channel];
+    }
+
+    double integratedDensity(int channel) {
+        return mean(channel) * count[channel];
+    }
+
+    // number of pixels in the ROI
+    double totalArea() {
+        return total;
+    }
+
+    // mean of value(numerator) / value(denominator)
+    double ratioMean(int numerator, int denominator) {
+        return ratioSum[numerator * channels + denominator] / ratioCount[numerator * channels + denominator];
+    }
+}
@@ -2,13 +2,12 @@ import ij.*;
 import ij.gui.*;
 import ij.io.OpenDialog;
 import ij.io.Opener;
-import ij.plugin.ChannelSplitter;
 import ij.plugin.PlugIn;
 import ij.plugin.frame.RoiManager;
 import ij.process.AutoThresholder;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
-import ij.process.LUT;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -54,6 +53,7 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
     private JButton maximumButton;
     private JComboBox<String> autoThresholdComboBox;
     private JButton analyzeButton;
+    private JButton sweepButton;
     private JCheckBox showLines;
     private JSlider profileSlider;
     private JLabel lineLengthLabel;
@@ -90,8 +90,14 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
     private JPanel outerCountPanel;
     private JRadioButton ringPlotRadioButton;
     private JRadioButton convexHullPlotRadioButton;
+    private JRadioButton surfaceDistanceRadioButton;
     private JRadioButton startPlotRadioButton;
     private JCheckBox autoBoundsCheckBox;
+    private JCheckBox allRoisCheckBox;
+    private JCheckBox roiPlotsCheckBox;
+    private JCheckBox allSlicesCheckBox;
+    private JTextField threadsField;
+    private JCheckBox livePreviewCheckBox;
 
     // constants
     private static final String TITLE = "Spheroid RGB";
@@ -106,15 +112,19 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
     double minDist;
     boolean darkPeaks;
     int quantification;
+    int parallelism = 1;
 
     // rgb channels
     private Table_Analyzer table_analyzer;
-    ImagePlus[] rgb;
+    Channel_View[] rgb;
     boolean takeR;
     boolean takeG;
     boolean takeB;
     boolean imageIsGray;
 
+    // live threshold preview
+    private Peak_Preview preview;
+
     // magic selection
     private double startTolerance = 128;
     private int startMode = 2; // [0]: "Legacy", [1]: "4-connected", [2]: "8-connected"
@@ -199,7 +209,8 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         frame.setLocation(p);
     }
 
-    private void runAnalyzer() {
+    // sweep: count, mean and area for all thresholds instead of the slider thresholds
+    private void runAnalyzer(boolean sweep) {
         // check if we got what we need
         if(WindowManager.getCurrentImage() == null || image == null) {
             IJ.showMessage("No images open");
@@ -209,6 +220,8 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
             IJ.showMessage("Nothing to do", "No Channel selected.");
             return;
         }
+        // preview markers are not results
+        preview.cancel();
 
         updateCountAndMeanValues();
 
@@ -223,6 +236,11 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
             roiManager.addRoi(currRoi);
         }
 
+        if (sweep) {
+            table_analyzer.sweep(this, image);
+            return;
+        }
+
         boolean[] options = new boolean[]
                 {cleanTableCheckBox.isSelected(), countCellsCheckBox.isSelected(), meanCheckBox.isSelected(), areaCheckBox.isSelected(),
                         integratedDensityCheckBox.isSelected(), ratioMeanCheckBox.isSelected(),
@@ -235,6 +253,8 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         updatePlotValues();
 
         if(multiPlot == null) multiPlot = new Multi_Plot();
+        updateParallelism();
+        multiPlot.parallelism = parallelism;
 
         roiManager = RoiManager.getInstance();
         if (roiManager == null) roiManager = new RoiManager();
@@ -250,20 +270,19 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         } else if(roiManager.getCount() == 0) roiManager.addRoi(image.getRoi());
 
         // check image type (color or not) all supported
-        ArrayList<ImagePlus> channel = new ArrayList<>();
+        ArrayList<Channel_View> channel = new ArrayList<>();
         if (image.getType() == ImagePlus.COLOR_RGB) {
             // check if we got what we need
             if(!(takeR || takeG || takeB)) {
                 IJ.showMessage("Nothing to do", "No Channel selected.");
                 return;
             }
-            ImagePlus[] rgb = ChannelSplitter.split(image);
-            setChannelLut(rgb);
+            Channel_View[] rgb = Channel_View.rgb(image);
             if (takeR) channel.add(rgb[0]);
             if (takeG) channel.add(rgb[1]);
             if (takeB) channel.add(rgb[2]);
         } else {
-            channel.add(image);
+            channel.add(new Channel_View(image));
         }
         boolean[] options = new boolean[]{cleanTableCheckBox.isSelected(), showLines.isSelected(),
                 showSelectedChannel.isSelected(), showAllGrayPlots.isSelected(), autoScaleCheckBox.isSelected(),
@@ -272,28 +291,37 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         int mode = Multi_Plot.STAR_PLOT;
         if(ringPlotRadioButton.isSelected()) mode = Multi_Plot.RING_PLOT;
         if (convexHullPlotRadioButton.isSelected()) mode = Multi_Plot.CONVEX_HULL;
+        if (surfaceDistanceRadioButton.isSelected()) mode = Multi_Plot.SURFACE_DISTANCE;
 
-        multiPlot.run(channel, image, profileSlider.getValue(), radius, profileLengthSlider.getValue(), yMax, options, mode);
+        if (allSlicesCheckBox.isSelected()) {
+            if (mode == Multi_Plot.STAR_PLOT) {
+                IJ.showMessage("Nothing to do", "Profiles of all slices are ring, convex hull or surface distance plots.");
+                return;
+            }
+            multiPlot.runStack(channel, image, profileLengthSlider.getValue(), mode);
+        } else if (allRoisCheckBox.isSelected()) {
+            Roi[] rois = roiManager.getSelectedRoisAsArray();
+            if (rois == null || rois.length == 0) rois = roiManager.getRoisAsArray();
+            multiPlot.runAll(channel, image, rois, profileSlider.getValue(), radius, profileLengthSlider.getValue(), yMax, options, mode,
+                    roiPlotsCheckBox.isSelected());
+        } else {
+            multiPlot.run(channel, image, profileSlider.getValue(), radius, profileLengthSlider.getValue(), yMax, options, mode);
+        }
     }
 
-    // check if Image is RGB or 8bit
+    // check if Image is RGB or 8, 16 or 32-bit gray scale
     private boolean checkImageType() {
         int type = image.getType();
 
         switch (type){
             case ImagePlus.GRAY8:
-                imageIsGray = true;
-                return true;
             case ImagePlus.GRAY16:
-                IJ.showMessage("16-bit gray scale image not supported");
-                return false;
             case ImagePlus.GRAY32:
-                IJ.showMessage("32-bit gray scale image not supported");
-                return false;
+                imageIsGray = true;
+                return true;
             case ImagePlus.COLOR_RGB:
                 imageIsGray = false;
-                rgb = ChannelSplitter.split(image);
-                setChannelLut(rgb);
+                rgb = Channel_View.rgb(image);
                 return true;
             default: IJ.showMessage("not supported");
                 return false;
@@ -343,7 +371,7 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         }
     }
 
-    private PointRoi findMaxSeed(ImagePlus image) {
+    static PointRoi findMaxSeed(ImagePlus image) {
         int xSeed = 0, ySeed = 0;
         float maxValue = 0;
         Roi roi = image.getRoi();
@@ -367,7 +395,7 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         return new PointRoi(xSeed, ySeed);
     }
 
-    private PointRoi findMinSeed(ImagePlus image) {
+    static PointRoi findMinSeed(ImagePlus image) {
         int xSeed = 0, ySeed = 0;
         float minValue = 0xff;
         Roi roi = image.getRoi();
@@ -390,12 +418,6 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         }
         return new PointRoi(xSeed, ySeed);
     }
-    // set suitable look up table for 8bit channel (pseudo color)
-    private void setChannelLut(ImagePlus[] rgb) {
-        rgb[0].setLut(LUT.createLutFromColor(Color.RED));
-        rgb[1].setLut(LUT.createLutFromColor(Color.GREEN));
-        rgb[2].setLut(LUT.createLutFromColor(Color.BLUE));
-    }
 
     /********************************************************
      * 														*
@@ -405,6 +427,7 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
 
     private void setImage() {
         image = WindowManager.getImage(imgList.getItemAt(imgList.getSelectedIndex()));
+        rgb = null; // channels of the previous image
 
         if(image == null) {
             initImageList();
@@ -433,11 +456,11 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
 
     private void showSelectedChannels() {
         if (image.getType() == ImagePlus.COLOR_RGB) {
-            ImagePlus[] split = ChannelSplitter.split(image);
-            setChannelLut(split);
-            if (takeR) split[0].show();
-            if (takeG) split[1].show();
-            if (takeB) split[2].show();
+            // only the shown channels are copied
+            Channel_View[] split = Channel_View.rgb(image);
+            if (takeR) split[0].toImagePlus().show();
+            if (takeG) split[1].toImagePlus().show();
+            if (takeB) split[2].toImagePlus().show();
         }
     }
 
@@ -459,28 +482,52 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         }
     }
 
-    private void maximumButtonAction(ImagePlus image, JSlider slider) {
+    private void maximumButtonAction(Channel_View channel, JSlider slider) {
         Roi roi = image.getRoi();
-        ImageStatistics stats;
-
-        if (roi != null && roi.isArea()) stats = roi.getImage().getStatistics();
-        else stats = image.getStatistics();
+        if (roi != null && !roi.isArea()) roi = null;
+
+        // min and max of the channel within the selection
+        ImageProcessor ip = channel.getProcessor(roi);
+        if (isLuminance(channel, ip)) {
+            // the luminance of an RGB image without a channel, as ImageJ measures it
+            ip.setRoi(roi);
+            ImageStatistics stats = ip.getStatistics();
+            ip.resetRoi();
+            slider.setValue((int) Math.ceil(darkPeaks ? stats.min : stats.max));
+            return;
+        }
+        Pixel_Range range = channel.range(ip);
+        double[] none = {-Double.MAX_VALUE};
+        Roi_Statistics stats = new Roi_Statistics(new ImageProcessor[]{ip}, new Pixel_Range[]{range}, roi, none, none, null, null);
 
-        if(darkPeaks) slider.setValue((int) Math.ceil(stats.min));
-        else slider.setValue((int) Math.ceil(stats.max));
+        // the sliders are levels (0..255), see Pixel_Range
+        if(darkPeaks) slider.setValue((int) Math.ceil(range.toLevel(stats.min(0))));
+        else slider.setValue((int) Math.ceil(range.toLevel(stats.max(0))));
     }
 
-    private void autoThresholdAction(String method, ImagePlus image, JSlider slider) {
-        if(image != null) {
+    private void autoThresholdAction(String method, Channel_View channel, JSlider slider) {
+        if(channel != null) {
             AutoThresholder autoThresholder = new AutoThresholder();
-            int auto = autoThresholder.getThreshold(method, image.getProcessor().getHistogram());
+            ImageProcessor ip = channel.getProcessor(null);
+            int[] histogram = isLuminance(channel, ip) ? ip.getHistogram() : channel.range(ip).histogram(ip);
+            int auto = autoThresholder.getThreshold(method, histogram);
             slider.setValue(auto);
         }
     }
 
+    // the gray threshold of an RGB image, shown when no channel is checked, has no Pixel_Range
+    private static boolean isLuminance(Channel_View channel, ImageProcessor ip) {
+        return channel.channel == Channel_View.GRAY && ip instanceof ColorProcessor;
+    }
+
     private void analyzeButtonActionPerformed() {
         if(checkImageType())
-            runAnalyzer();
+            runAnalyzer(false);
+    }
+
+    private void sweepButtonActionPerformed() {
+        if(checkImageType())
+            runAnalyzer(true);
     }
 
     /********************************************************
@@ -523,6 +570,13 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
             }
         });
 
+        sweepButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                sweepButtonActionPerformed();
+            }
+        });
+
         cellWidthField.addKeyListener(new KeyAdapter() {
             @Override
             public void keyTyped(KeyEvent e) {
@@ -557,24 +611,35 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
             @Override
             public void stateChanged(ChangeEvent e) {
                 thresholdLabel.setText(thresholdSlider.getValue() + "");
+                if (livePreviewCheckBox.isSelected()) preview.schedule("");
             }
         });
         redThresholdSlider.addChangeListener(new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
                 redThresholdLabel.setText(redThresholdSlider.getValue() + "");
+                if (livePreviewCheckBox.isSelected()) preview.schedule("red");
             }
         });
         greenThresholdSlider.addChangeListener(new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
                 greenThresholdLabel.setText(greenThresholdSlider.getValue() + "");
+                if (livePreviewCheckBox.isSelected()) preview.schedule("green");
             }
         });
         blueThresholdSlider.addChangeListener(new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
                 blueThresholdLabel.setText(blueThresholdSlider.getValue() + "");
+                if (livePreviewCheckBox.isSelected()) preview.schedule("blue");
+            }
+        });
+
+        livePreviewCheckBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (!livePreviewCheckBox.isSelected()) preview.cancel();
             }
         });
 
@@ -593,14 +658,13 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         maximumButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                maximumButtonAction(image, thresholdSlider);
+                maximumButtonAction(new Channel_View(image), thresholdSlider);
             }
         });
         redMaxButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
                 if(checkImageType() && !imageIsGray) {
-                    rgb[0].setRoi(image.getRoi());
                     maximumButtonAction(rgb[0], redThresholdSlider);
                 }
             }
@@ -609,7 +673,6 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
             @Override
             public void actionPerformed(ActionEvent e) {
                 if(checkImageType() && !imageIsGray) {
-                    rgb[1].setRoi(image.getRoi());
                     maximumButtonAction(rgb[1], greenThresholdSlider);
                 }
             }
@@ -618,7 +681,6 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
             @Override
             public void actionPerformed(ActionEvent e) {
                 if(checkImageType() && !imageIsGray) {
-                    rgb[2].setRoi(image.getRoi());
                     maximumButtonAction(rgb[2], blueThresholdSlider);
                 }
             }
@@ -626,7 +688,8 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         autoButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                autoThresholdAction((String) autoThresholdComboBox.getSelectedItem(), image, thresholdSlider);
+                autoThresholdAction((String) autoThresholdComboBox.getSelectedItem(),
+                        image != null ? new Channel_View(image) : null, thresholdSlider);
             }
         });
 
@@ -716,6 +779,12 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
                 enableStarPlotComponents(false);
             }
         });
+        surfaceDistanceRadioButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                enableStarPlotComponents(false);
+            }
+        });
         profileSlider.addChangeListener(new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
@@ -730,6 +799,12 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
             }
         });
 
+        allRoisCheckBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                roiPlotsCheckBox.setEnabled(allRoisCheckBox.isSelected());
+            }
+        });
         autoScaleCheckBox.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
@@ -788,6 +863,47 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
         cellWidth = Integer.parseInt(cellWidthField.getText().replaceAll("[^\\d.]", "")); //make sure there are only digits
         minDist = Double.parseDouble(minDistField.getText().replace("[^\\d.]", "")); //.replaceAll("\\D", "")
         quantification = Integer.parseInt(quantificationTextField.getText().replaceAll("[^\\d.]", ""));
+        updateParallelism();
+    }
+
+    private void updateParallelism() {
+        String threads = threadsField.getText().replaceAll("[^\\d]", "");
+        int value;
+        try {
+            value = threads.isEmpty() ? 1 : Integer.parseInt(threads);
+        } catch (NumberFormatException e) {
+            value = Integer.MAX_VALUE; // more digits than an int
+        }
+        parallelism = Convolution_Engine.clampParallelism(value);
+        if (!threadsField.getText().equals(Integer.toString(parallelism))) threadsField.setText(Integer.toString(parallelism));
+    }
+
+    // channel image for the live preview, null if there is nothing to preview
+    Channel_View getPreviewChannel(String channel) {
+        if (image == null) return null;
+        try {
+            updateCountAndMeanValues();
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        switch (image.getType()) {
+            case ImagePlus.GRAY8:
+            case ImagePlus.GRAY16:
+            case ImagePlus.GRAY32:
+                imageIsGray = true;
+                return channel.isEmpty() ? new Channel_View(image) : null;
+            case ImagePlus.COLOR_RGB:
+                if (rgb == null || imageIsGray) checkImageType();
+                switch (channel) {
+                    case "red": return rgb[0];
+                    case "green": return rgb[1];
+                    case "blue": return rgb[2];
+                    default: return null;
+                }
+            default:
+                return null;
+        }
     }
 
     private void updatePlotValues() {
@@ -822,6 +938,11 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
     }
 
     private void initComponents() {
+        preview = new Peak_Preview(this);
+
+        // one thread per core by default
+        threadsField.setText(Integer.toString(Runtime.getRuntime().availableProcessors()));
+
         // initialize total combo box
         totalComboBox.addItem("Red");
         totalComboBox.addItem("Green");
@@ -844,6 +965,7 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
     }
 
     private void close() {
+        preview.dispose();
         WindowManager.removeWindow(this.frame);
         frame.dispose();
     }
@@ -855,6 +977,10 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
 
     @Override
     public void imageClosed(ImagePlus imagePlus) {
+        Response_Cache.invalidate(imagePlus);
+        Pixel_Range.invalidate(imagePlus);
+        Histogram_Cache.invalidate(imagePlus);
+        Nuclei_Counter.releaseBuffers();
         if(WindowManager.getImageCount() > 0)
             imgList.removeItem(imagePlus.getTitle());
         else close();
@@ -862,6 +988,9 @@ public class Spheroid_RGB implements PlugIn, ImageListener {
 
     @Override
     public void imageUpdated(ImagePlus imagePlus) {
-
+        // pixels may have changed, cached response maps, ranges and histograms of this image are stale
+        Response_Cache.invalidate(imagePlus);
+        Pixel_Range.invalidate(imagePlus);
+        Histogram_Cache.invalidate(imagePlus);
     }
 }
\ No newline at end of file
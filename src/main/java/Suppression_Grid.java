@@ -0,0 +1,69 @@
+import java.util.Arrays;
+
+/**
+ * Created on 17/10/2026.
+ *
+ * Uniform grid of already processed peak candidates for the min distance rule of {@link Nuclei_Counter}.
+ * The cell size is the min distance, so a query only has to look at the 3 x 3 cells around a point.
+ */
+class Suppression_Grid {
+
+    private final double minDist2;
+    private final int cellSize;
+    private final int columns;
+    private final int rows;
+
+    // per cell linked lists of point indices
+    private final int[] head;
+    private int[] next;
+    private int[] xs;
+    private int[] ys;
+    private int size;
+
+    Suppression_Grid(int width, int height, double min_dist) {
+        minDist2 = min_dist * min_dist;
+        cellSize = min_dist > 1 ? (int) Math.ceil(min_dist) : 1;
+        columns = (width + cellSize - 1) / cellSize;
+        rows = (height + cellSize - 1) / cellSize;
+        head = new int[columns * rows];
+        Arrays.fill(head, -1);
+        next = new int[64];
+        xs = new int[64];
+        ys = new int[64];
+    }
+
+    void add(int x, int y) {
+        if (size == xs.length) {
+            next = Arrays.copyOf(next, size << 1);
+            xs = Arrays.copyOf(xs, size << 1);
+            ys = Arrays.copyOf(ys, size << 1);
+        }
+        int cell = (x / cellSize) + columns * (y / cellSize);
+        xs[size] = x;
+        ys[size] = y;
+        next[size] = head[cell];
+        head[cell] = size;
+        size++;
+    }
+
+    // true if a point within min distance has been added
+    boolean isSuppressed(int x, int y) {
+        int cx = x / cellSize;
+        int cy = y / cellSize;
+        int xStart = cx > 0 ? cx - 1 : 0;
+        int xEnd = cx < columns - 1 ? cx + 1 : columns - 1;
+        int yStart = cy > 0 ? cy - 1 : 0;
+        int yEnd = cy < rows - 1 ? cy + 1 : rows - 1;
+
+        for (int j = yStart; j <= yEnd; j++) {
+            for (int i = xStart; i <= xEnd; i++) {
+                for (int p = head[i + columns * j]; p >= 0; p = next[p]) {
+                    int dx = xs[p] - x;
+                    int dy = ys[p] - y;
+                    if (dx * dx + dy * dy <= minDist2) return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -3,13 +3,14 @@ import ij.gui.*;
 import ij.measure.Calibration;
 import ij.measure.Measurements;
 import ij.measure.ResultsTable;
-import ij.plugin.filter.Analyzer;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.concurrent.*;
 
 /**
  * Created on 17/10/2016.
@@ -20,31 +21,186 @@ class Table_Analyzer {
 
     private Spheroid_RGB main;
     private ResultsTable table;
-    private double numberOfPixelsAboveThreshold;
-    private double totalNumberOfPixels;
+
+    // settings of the current run, fixed before the ROI tasks start
+    private Analysis_Parameters params;
+    private ImagePlus source;
+    private int counterParallelism;
+    private boolean countIsSelected;
+    private boolean meanIsSelected;
+    private boolean areaIsSelected;
+    private boolean idIsSelected;
+    private boolean ratioMeanIsSelected;
+    private boolean ratioValuesIsSelected;
+    private String major;
 
     void run (Spheroid_RGB main, ImagePlus image, boolean[] options, String major) {
         this.main = main;
 
         boolean cleanTable = options[0];
-        boolean countIsSelected = options[1];
-        boolean meanIsSelected = options[2];
-        boolean areaIsSelected = options[3];
-        boolean idIsSelected = options[4]; //id = integrated density
-        boolean ratioMeanIsSelected = options[5];
-        boolean ratioValuesIsSelected = options[6];
+        countIsSelected = options[1];
+        meanIsSelected = options[2];
+        areaIsSelected = options[3];
+        idIsSelected = options[4]; //id = integrated density
+        ratioMeanIsSelected = options[5];
+        ratioValuesIsSelected = options[6];
         boolean plotIsSelected = options[7];
 
-        major = major.toLowerCase();
-
-        int threshold = 0;
+        this.major = major.toLowerCase();
+        params = new Analysis_Parameters(main);
+        source = main.image;
 
         if(cleanTable) table = new ResultsTable();
 
-        ArrayList<ImagePlus> channels = initChannels();
+        final ArrayList<Channel_View> channels = initChannels();
 
         //image stats
+        final Calibration calibration = image.getCalibration();
+        Roi[] roiArray = selectRois();
+        if(roiArray != null) {
+            // ROIs are analyzed concurrently, rows are added in ROI Manager order
+            ExecutorService executor = params.parallelism > 1 && roiArray.length > 1
+                    ? Executors.newFixedThreadPool(Math.min(params.parallelism, roiArray.length)) : null;
+            // the threads go to the ROIs when there are several of them, otherwise to the convolution
+            counterParallelism = executor != null ? 1 : params.parallelism;
+            Result_Rows rows = new Result_Rows("Image", "ROI");
+            try {
+                ArrayList<Future<Roi_Result>> results = new ArrayList<>();
+                for (final Roi currRoi : roiArray) {
+                    Callable<Roi_Result> task = new Callable<Roi_Result>() {
+                        @Override
+                        public Roi_Result call() {
+                            return analyzeRoi(channels, currRoi, calibration);
+                        }
+                    };
+                    if (executor != null) results.add(executor.submit(task));
+                    else {
+                        FutureTask<Roi_Result> future = new FutureTask<>(task);
+                        future.run();
+                        results.add(future);
+                    }
+                }
+
+                // peaks of a gray image are drawn on the image, those of color channels on their result images
+                Overlay[] overlays = new Overlay[channels.size()];
+                for (int c = 0; c < channels.size(); c++) {
+                    Overlay overlay = channels.get(c).channel == Channel_View.GRAY ? image.getOverlay() : null;
+                    overlays[c] = overlay != null ? overlay : new Overlay();
+                }
+
+                for (int i = 0; i < roiArray.length; i++) {
+                    Roi currRoi = roiArray[i];
+                    Roi_Result result = results.get(i).get();
+                    if (countIsSelected) {
+                        for (int c = 0; c < channels.size(); c++) {
+                            drawPeaks(overlays[c], currRoi, result.peaks.get(c));
+                            if (plotIsSelected) countDistanceFunction(channels.get(c), result.peaks.get(c), currRoi);
+                        }
+                    }
+                    rows.addRow(new String[]{image.getTitle(), currRoi.getName()}, result.values);
+                    if (rows.isPublishDue()) publish(rows);
+                }
+                publish(rows);
+
+                if(countIsSelected) {
+                    for (int c = 0; c < channels.size(); c++) {
+                        Channel_View channel = channels.get(c);
+                        ImagePlus result;
+                        if (channel.channel == Channel_View.GRAY) {
+                            image.setOverlay(overlays[c]);
+                            result = image.duplicate();
+                        } else {
+                            result = channel.toImagePlus();
+                            result.setOverlay(overlays[c]);
+                        }
+                        result.setTitle("Results " + channel.getTitle());
+                        result.show("show results");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                if (executor != null) executor.shutdownNow();
+                if (rows.size() > 0) publish(rows);
+            }
+
+            main.roiManager.runCommand(image, "Show All");
+        }
+    }
+
+    /**
+     * Measures the ROIs of image without dialogs, overlays or windows, for Batch_Runner.
+     * options are those of run, the ROIs are measured one after the other and added to rows in order.
+     */
+    void measure(ImagePlus image, ArrayList<Channel_View> channels, Roi[] rois, Analysis_Parameters params,
+                 boolean[] options, String major, Result_Rows rows) {
+        countIsSelected = options[1];
+        meanIsSelected = options[2];
+        areaIsSelected = options[3];
+        idIsSelected = options[4];
+        ratioMeanIsSelected = options[5];
+        ratioValuesIsSelected = options[6];
+
+        this.major = major.toLowerCase();
+        this.params = params;
+        source = image;
+        counterParallelism = params.parallelism;
+
         Calibration calibration = image.getCalibration();
+        for (Roi roi : rois) {
+            Roi_Result result = analyzeRoi(channels, roi, calibration);
+            rows.addRow(new String[]{image.getTitle(), roi.getName()}, result.values);
+        }
+    }
+
+    /**
+     * Value headings of the rows of measure (and run) in row order, derived from the selected measurements:
+     * the layout of a Result_Writer. options are those of run, titles those of the channels.
+     */
+    static String[] columns(ArrayList<String> titles, boolean[] options, String major, Calibration calibration) {
+        boolean count = options[1], mean = options[2], area = options[3], id = options[4];
+        boolean ratioMean = options[5], ratioValues = options[6];
+        major = major.toLowerCase();
+
+        ArrayList<String> headings = new ArrayList<>();
+        for (String t : titles) {
+            String title = t.toLowerCase();
+            String channelName = title.equals("red")||title.equals("green")||title.equals("blue")?" ("+title+")":"";
+            if (count) headings.addAll(Arrays.asList("count" + channelName, "peaks mean" + channelName, "nuclei density" + channelName));
+            if (mean) headings.add("mean" + channelName);
+            if (area) headings.addAll(Arrays.asList("area" + channelName, "total area fraction" + channelName));
+            if (id) headings.add("integrated density" + channelName);
+        }
+        if (area) {
+            if (calibration.scaled()) headings.add("total area (" + calibration.getUnit() + "²)");
+            else headings.add("total area (number of pixels)");
+        }
+
+        // same order as ratio() adds them
+        if (titles.size() >= 2) {
+            ArrayList<String> keys = new ArrayList<>();
+            if (ratioValues && count) keys.addAll(Arrays.asList("count", "peaks mean"));
+            if (ratioValues && mean) keys.add("mean");
+            if (ratioValues && area) keys.add("area");
+            for (String key : keys) {
+                String majorHeading = key + " (" + major + ")";
+                if (!headings.contains(majorHeading)) continue;
+                ArrayList<String> ratios = new ArrayList<>();
+                for (String heading : headings) {
+                    if (heading.startsWith(key) && !heading.contains(major)) ratios.add(heading + ":" + majorHeading);
+                }
+                headings.addAll(ratios);
+            }
+            if (ratioMean) headings.add("ratio mean");
+        }
+        return headings.toArray(new String[headings.size()]);
+    }
+
+    // selected ROIs of the ROI Manager (all if none are selected), null if the user declines a large batch
+    private Roi[] selectRois() {
         Roi[] roiArray = main.roiManager.getSelectedRoisAsArray();
         if(roiArray == null) roiArray = main.roiManager.getRoisAsArray();
         GenericDialog warning = new GenericDialog("More than 10 items in ROI Manager");
@@ -54,75 +210,234 @@ class Table_Analyzer {
         if(roiArray.length > 10) {
             warning.showDialog();
         }
-        if(warning.wasOKed() || roiArray.length < 10) {
-            for (Roi currRoi : roiArray) {
-                LinkedHashMap<String, Double> resultValues = new LinkedHashMap<>();
-                for (ImagePlus currChannel : channels) {
-                    currChannel.setRoi(currRoi);
-                    String title = currChannel.getTitle().toLowerCase();
-                    threshold = main.getThreshold(title);
-                    String channelName = title.equals("red")||title.equals("green")||title.equals("blue")?" ("+title+")":"";
-                    double thresholdMean = roiMean(currChannel, threshold);
-                    if (countIsSelected) {
-                        ArrayList<Point> peaks = rumNucleiCounter(currChannel, threshold);
-                        resultValues.put("count" + channelName, (double) peaks.size());
-
-                        double meanPeak = meanPeak((byte[]) currChannel.getProcessor().getPixels(), peaks);
-                        resultValues.put("peaks mean" + channelName, meanPeak);
-
-                        // "Density: cells per square (calibration.getUnit())
-                        double density = (double) peaks.size()/calibration.getY(calibration.getX(totalNumberOfPixels));
-                        resultValues.put("nuclei density" + channelName, density);
+        return warning.wasOKed() || roiArray.length < 10 ? roiArray : null;
+    }
 
-                        if (plotIsSelected) countDistanceFunction(currChannel.getTitle(), peaks, currRoi);
+    /**
+     * Threshold sweep: count, mean, area and area fraction of every ROI and channel for all thresholds 0..255.
+     * Each ROI and channel is convolved and searched for peaks once at threshold 0, the peaks of a higher
+     * threshold are those with a response at or above it. Mean and area come from the ROI histograms.
+     * Adds one row per ROI and threshold to the "Threshold Sweep" table and plots the total count per channel.
+     */
+    void sweep(Spheroid_RGB main, ImagePlus image) {
+        this.main = main;
+        params = new Analysis_Parameters(main);
+        source = main.image;
+        ratioMeanIsSelected = false;
+
+        final ArrayList<Channel_View> channels = initChannels();
+        final Calibration calibration = image.getCalibration();
+        Roi[] roiArray = selectRois();
+        if(roiArray == null) return;
+
+        ExecutorService executor = params.parallelism > 1 && roiArray.length > 1
+                ? Executors.newFixedThreadPool(Math.min(params.parallelism, roiArray.length)) : null;
+        counterParallelism = executor != null ? 1 : params.parallelism;
+        Result_Rows rows = new Result_Rows("Image", "ROI");
+        ResultsTable sweepTable = new ResultsTable();
+        double[][] totalCount = new double[channels.size()][256];
+        try {
+            ArrayList<Future<Roi_Result>> results = new ArrayList<>();
+            for (final Roi currRoi : roiArray) {
+                Callable<Roi_Result> task = new Callable<Roi_Result>() {
+                    @Override
+                    public Roi_Result call() {
+                        return sweepRoi(channels, currRoi);
                     }
+                };
+                if (executor != null) results.add(executor.submit(task));
+                else {
+                    FutureTask<Roi_Result> future = new FutureTask<>(task);
+                    future.run();
+                    results.add(future);
+                }
+            }
 
-                    if (meanIsSelected) resultValues.put("mean" + channelName, thresholdMean);
-                    if (areaIsSelected) {
-                        resultValues.put("area" + channelName, calibration.getY(calibration.getX(numberOfPixelsAboveThreshold)));
-                        resultValues.put("total area fraction" + channelName, numberOfPixelsAboveThreshold / totalNumberOfPixels);
+            for (int i = 0; i < roiArray.length; i++) {
+                Roi currRoi = roiArray[i];
+                Roi_Result result = results.get(i).get();
+                Roi_Histogram histogram = result.histogram;
+                double totalNumberOfPixels = histogram.totalArea();
+                for (int t = 0; t < 256; t++) {
+                    LinkedHashMap<String, Double> values = new LinkedHashMap<>();
+                    values.put("threshold", (double) t);
+                    for (int c = 0; c < channels.size(); c++) {
+                        String title = channels.get(c).getTitle().toLowerCase();
+                        String channelName = title.equals("red")||title.equals("green")||title.equals("blue")?" ("+title+")":"";
+                        totalCount[c][t] += result.counts[c][t];
+                        values.put("count" + channelName, (double) result.counts[c][t]);
+                        values.put("mean" + channelName, histogram.mean(c, t));
+                        values.put("area" + channelName, calibration.getY(calibration.getX(histogram.area(c, t))));
+                        values.put("total area fraction" + channelName, histogram.area(c, t) / totalNumberOfPixels);
                     }
-                    if (idIsSelected)
-                        resultValues.put("integrated density" + channelName, thresholdMean * numberOfPixelsAboveThreshold);
+                    rows.addRow(new String[]{image.getTitle(), currRoi.getName()}, values);
                 }
+                if (rows.isPublishDue()) rows.publish(sweepTable, "Threshold Sweep");
+            }
+            rows.publish(sweepTable, "Threshold Sweep");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (executor != null) executor.shutdownNow();
+            if (rows.size() > 0) rows.publish(sweepTable, "Threshold Sweep");
+        }
 
-                if (areaIsSelected) {
-                    if (calibration.scaled()) resultValues.put("total area (" + calibration.getUnit() + "²)",
-                            calibration.getY(calibration.getX(totalNumberOfPixels)));
-                    else resultValues.put("total area (number of pixels)", totalNumberOfPixels);
-                }
+        double[] x = new double[256];
+        double countMax = 0;
+        for (int t = 0; t < 256; t++) x[t] = t;
+        for (double[] count : totalCount) for (double n : count) countMax = Math.max(countMax, n);
+        Plot plot = new Plot("Threshold Sweep " + image.getTitle() + " | ROIs: " + roiArray.length, "Threshold", "Count");
+        plot.setLimits(0, 255, 0, countMax + 1);
+        for (int c = 0; c < channels.size(); c++) {
+            String title = channels.get(c).getTitle().toLowerCase();
+            plot.setColor(title.equals("red") ? Color.red : title.equals("green") ? Color.green : title.equals("blue") ? Color.blue : Color.black);
+            plot.addPoints(x, totalCount[c], Plot.LINE);
+        }
+        plot.show();
+    }
 
-                // ratio values
-                if (channels.size() >= 2) {
-                    if (ratioValuesIsSelected && countIsSelected) {
-                        resultValues.putAll(ratio(resultValues, "count", major));
-                        resultValues.putAll(ratio(resultValues, "peaks mean", major));
-                    }
-                    if (ratioValuesIsSelected && meanIsSelected)
-                        resultValues.putAll(ratio(resultValues, "mean", major));
-                    if (ratioValuesIsSelected && areaIsSelected)
-                        resultValues.putAll(ratio(resultValues, "area", major));
-                    if (ratioMeanIsSelected) resultValues.put("ratio mean", roiMeanRatio(channels, major, threshold));
-                }
+    // peak counts of one ROI for all thresholds, from one search at threshold 0
+    private Roi_Result sweepRoi(ArrayList<Channel_View> channels, Roi currRoi) {
+        Roi_Result result = new Roi_Result();
+        result.histogram = roiHistogram(channels, currRoi);
+        result.counts = new int[channels.size()][256];
+        for (int c = 0; c < channels.size(); c++) {
+            Channel_View channel = channels.get(c);
+            Peak_List peaks = rumNucleiCounter(channel, currRoi, 0);
+
+            // peaks per response bin, then cumulated from the top
+            int[] counts = result.counts[c];
+            for (int i = 0; i < peaks.size(); i++) {
+                float response = peaks.getResponse(i);
+                int t = 255;
+                while (t > 0 && response < toResponseThreshold(t)) t--;
+                counts[t]++;
+            }
+            for (int t = 254; t >= 0; t--) counts[t] += counts[t + 1];
+        }
+        return result;
+    }
+
+    // values and peaks of one ROI, peaks are per channel
+    private static class Roi_Result {
+        final LinkedHashMap<String, Double> values = new LinkedHashMap<>();
+        final ArrayList<Peak_List> peaks = new ArrayList<>();
+        // threshold sweep only
+        Roi_Histogram histogram;
+        int[][] counts;
+    }
+
+    // result of one ROI in all channels from Result_Cache, or measured and cached
+    private Roi_Result analyzeRoi(ArrayList<Channel_View> channels, Roi currRoi, Calibration calibration) {
+        String key = resultKey(channels, currRoi, calibration);
+        Result_Cache.Entry cached = Result_Cache.get(key);
+        Roi_Result result = new Roi_Result();
+        if (cached != null) {
+            result.values.putAll(cached.values);
+            result.peaks.addAll(cached.peaks);
+            return result;
+        }
 
-                addValuesToResultsTable(image.getTitle(), currRoi.getName(), resultValues);
+        result = measureRoi(channels, currRoi, calibration);
+        Result_Cache.put(key, new Result_Cache.Entry(result.values, result.peaks));
+        return result;
+    }
+
+    // content key of a ROI result: the pixels it depends on, the ROI geometry, all parameters and measurements
+    private String resultKey(ArrayList<Channel_View> channels, Roi roi, Calibration calibration) {
+        StringBuilder key = new StringBuilder();
+
+        // peaks depend on the pixels of the kernel and of the maximum neighborhood around the ROI
+        int width = params.cellWidth;
+        int halo = (int) Math.floor(width / 3.0) + (width - 1) / 2 + 1;
+        ImageProcessor hashed = null;
+        for (Channel_View channel : channels) {
+            ImageProcessor ip = channel.getProcessor(roi);
+            if (ip != hashed) {
+                Rectangle r = roi.getBounds();
+                Rectangle region = new Rectangle(r.x - halo, r.y - halo, r.width + 2 * halo, r.height + 2 * halo)
+                        .intersection(new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+                key.append(Long.toHexString(Result_Cache.pixelHash(ip, region))).append('|');
+                hashed = ip;
             }
+            // levels of 16 and 32-bit images depend on the whole image, values on the calibration function
+            Pixel_Range range = channel.range(ip);
+            key.append(channel.channel).append(':').append(range.min).append(',').append(range.max)
+                    .append(':').append(Arrays.hashCode(ip.getCalibrationTable()))
+                    .append(':').append(params.getThreshold(channel.getTitle().toLowerCase())).append('|');
+        }
 
-            if(countIsSelected) {
-                for (ImagePlus channel : channels) {
-                    ImagePlus result = channel.duplicate();
-                    result.setTitle("Results " + channel.getTitle());
-                    result.show("show results");
-                }
+        key.append(Histogram_Cache.roiKey(roi)).append('|')
+                .append(params.cellWidth).append(',').append(params.minDist).append(',').append(params.darkPeaks).append('|')
+                .append(countIsSelected).append(',').append(meanIsSelected).append(',').append(areaIsSelected).append(',')
+                .append(idIsSelected).append(',').append(ratioMeanIsSelected).append(',').append(ratioValuesIsSelected)
+                .append(',').append(major).append('|')
+                .append(calibration.pixelWidth).append(',').append(calibration.pixelHeight).append(',').append(calibration.getUnit());
+        return key.toString();
+    }
+
+    // measures one ROI in all channels, only reads shared state, so it runs on any thread
+    private Roi_Result measureRoi(ArrayList<Channel_View> channels, Roi currRoi, Calibration calibration) {
+        Roi_Result result = new Roi_Result();
+        LinkedHashMap<String, Double> resultValues = result.values;
+        Roi_Histogram histogram = roiHistogram(channels, currRoi);
+        double totalNumberOfPixels = histogram.totalArea();
+        for (int c = 0; c < channels.size(); c++) {
+            Channel_View currChannel = channels.get(c);
+            String title = currChannel.getTitle().toLowerCase();
+            int threshold = params.getThreshold(title);
+            String channelName = title.equals("red")||title.equals("green")||title.equals("blue")?" ("+title+")":"";
+            double thresholdMean = histogram.mean(c, threshold);
+            double numberOfPixelsAboveThreshold = histogram.area(c, threshold);
+            if (countIsSelected) {
+                Peak_List peaks = rumNucleiCounter(currChannel, currRoi, threshold);
+                result.peaks.add(peaks);
+                resultValues.put("count" + channelName, (double) peaks.size());
+
+                double meanPeak = meanPeak(currChannel, currChannel.getProcessor(currRoi), peaks);
+                resultValues.put("peaks mean" + channelName, meanPeak);
+
+                // "Density: cells per square (calibration.getUnit())
+                double density = (double) peaks.size()/calibration.getY(calibration.getX(totalNumberOfPixels));
+                resultValues.put("nuclei density" + channelName, density);
             }
 
-            main.roiManager.runCommand(image, "Show All");
+            if (meanIsSelected) resultValues.put("mean" + channelName, thresholdMean);
+            if (areaIsSelected) {
+                resultValues.put("area" + channelName, calibration.getY(calibration.getX(numberOfPixelsAboveThreshold)));
+                resultValues.put("total area fraction" + channelName, numberOfPixelsAboveThreshold / totalNumberOfPixels);
+            }
+            if (idIsSelected)
+                resultValues.put("integrated density" + channelName, histogram.integratedDensity(c, threshold));
+        }
+
+        if (areaIsSelected) {
+            if (calibration.scaled()) resultValues.put("total area (" + calibration.getUnit() + "²)",
+                    calibration.getY(calibration.getX(totalNumberOfPixels)));
+            else resultValues.put("total area (number of pixels)", totalNumberOfPixels);
+        }
+
+        // ratio values
+        if (channels.size() >= 2) {
+            if (ratioValuesIsSelected && countIsSelected) {
+                resultValues.putAll(ratio(resultValues, "count", major));
+                resultValues.putAll(ratio(resultValues, "peaks mean", major));
+            }
+            if (ratioValuesIsSelected && meanIsSelected)
+                resultValues.putAll(ratio(resultValues, "mean", major));
+            if (ratioValuesIsSelected && areaIsSelected)
+                resultValues.putAll(ratio(resultValues, "area", major));
+            if (ratioMeanIsSelected) resultValues.put("ratio mean", roiMeanRatio(histogram, channels, currRoi));
         }
+        return result;
     }
 
-    private ArrayList<ImagePlus> initChannels() {
-        ArrayList<ImagePlus> channels = new ArrayList<>();
-        if (main.imageIsGray) channels.add(main.image);
+    private ArrayList<Channel_View> initChannels() {
+        ArrayList<Channel_View> channels = new ArrayList<>();
+        if (main.imageIsGray) channels.add(new Channel_View(main.image));
         else {
             if (main.takeR) channels.add(main.rgb[0]);
             if (main.takeG) channels.add(main.rgb[1]);
@@ -147,153 +462,135 @@ class Table_Analyzer {
         return ratioValues;
     }
 
-    private void addValuesToResultsTable(String imgTitle, String roiTitle, LinkedHashMap<String, Double> results) {
+    // adds the buffered rows to the results table and shows it
+    private void publish(Result_Rows rows) {
         if (table==null) table = new ResultsTable();
-        table.incrementCounter();
-        table.addValue("Image", imgTitle);
-        table.addValue("ROI", roiTitle);
-        for (String s : results.keySet()) {
-            table.addValue(s, results.get(s));
-        }
-
-        Analyzer.setResultsTable(table);
-        table.show("Results");
+        rows.publish(table, "Results");
     }
 
-    private ArrayList<Point> rumNucleiCounter(ImagePlus imp, int threshold) {
+    private Peak_List rumNucleiCounter(Channel_View imp, Roi roi, int threshold) {
         //maskImp = null (ROI)
-        double doubleThreshold = 10 * ((double)threshold /255);
-        Nuclei_Counter nucleiCounter = new Nuclei_Counter(imp, main.cellWidth, main.minDist, doubleThreshold , main.darkPeaks);
+        double doubleThreshold = toResponseThreshold(threshold);
+        Nuclei_Counter nucleiCounter = new Nuclei_Counter(imp, roi, params.cellWidth, params.minDist, doubleThreshold , params.darkPeaks);
+        nucleiCounter.setParallelism(counterParallelism);
+        nucleiCounter.setCacheKey(Response_Cache.sourceKey(source, imp.getTitle()));
         nucleiCounter.run();
-        ArrayList<Point> peaks = nucleiCounter.getPeaks();
 
-        drawPeaks(imp, peaks);
+        return nucleiCounter.getPeaks();
+    }
 
-        return peaks;
+    // maps a slider threshold (0..255) to the LoG response scale used by Nuclei_Counter
+    static double toResponseThreshold(int threshold) {
+        return 10 * ((double)threshold /255);
     }
 
-    private void drawPeaks(ImagePlus imp, ArrayList<Point> peaks) {
-        Roi roi = imp.getRoi();
+    private void drawPeaks(Overlay overlay, Roi roi, Peak_List peaks) {
         int roiPosition = roi.getPosition();
-        Overlay overlay = imp.getOverlay();
-        if(overlay == null) overlay = new Overlay();
 
-        for (Point p : peaks) {
-            PointRoi pointRoi = new PointRoi(p.x, p.y);
+        for (int i = 0; i < peaks.size(); i++) {
+            PointRoi pointRoi = new PointRoi(peaks.getX(i), peaks.getY(i));
             pointRoi.setPosition(roiPosition);
             overlay.add(pointRoi);
         }
 
         overlay.add(roi);
-        imp.killRoi();
-        imp.setOverlay(overlay);
     }
 
-    private double meanPeak(byte[] pixels, ArrayList<Point> peaks) {
+    // mean calibrated value at the peaks, in the units of "mean"
+    private double meanPeak(Channel_View channel, ImageProcessor ip, Peak_List peaks) {
         double sum = 0;
-        int width = main.image.getWidth();
-        for (Point p : peaks) {
-            int pos = p.y * width + p.x;
-            sum += pixels[pos] & 0xff;
+        for (int i = 0; i < peaks.size(); i++) {
+            sum += channel.getPixelValue(ip, peaks.getX(i), peaks.getY(i));
         }
         return sum / peaks.size();
     }
 
-    private double roiMean(ImagePlus imp, int threshold) {
-        Roi roi = imp.getRoi();
-        if (roi!=null && !roi.isArea()) roi = null;
-        ImageProcessor ip;
-        int roiPosition = roi!=null?roi.getPosition():0;
-        if(imp.getStackSize() > 1 && roiPosition > 1) {
-            ip = imp.getStack().getProcessor(roiPosition);
-        } else ip = imp.getProcessor();
-        ImageProcessor mask = roi!=null?roi.getMask():null;
-        Rectangle r = roi!=null ? roi.getBounds() : new Rectangle(0,0,ip.getWidth(),ip.getHeight());
-
-        double sum = 0;
-        numberOfPixelsAboveThreshold = 0;
-        totalNumberOfPixels = 0;
-
-        int minThreshold = 0;
-        int maxThreshold= 255;
-
-        if(main.darkPeaks) maxThreshold -= threshold;
-        else minThreshold = threshold;
-
-        for (int y=0; y<r.height; y++) {
-            for (int x=0; x<r.width; x++) {
-                if (mask==null||mask.getPixel(x,y)!=0) {
-                    totalNumberOfPixels++;
-                    float value = ip.getPixelValue(x+r.x, y+r.y);
-                    if (value >= minThreshold && value <= maxThreshold) {
-                        sum += value;
-                        numberOfPixelsAboveThreshold++;
-                    }
-                }
-            }
+    // threshold histograms of all channels in the ROI, cached until the image changes
+    private Roi_Histogram roiHistogram(ArrayList<Channel_View> channels, Roi roi) {
+        int n = channels.size();
+        int[] pair = ratioMeanIsSelected ? ratioPair(channels) : null;
+        int numerator = pair != null ? pair[0] : -1;
+        int denominator = pair != null ? pair[1] : -1;
+
+        StringBuilder titles = new StringBuilder();
+        for (Channel_View channel : channels) titles.append(channel.getTitle()).append(',');
+        String key = Histogram_Cache.key(Response_Cache.sourceKey(source, titles.toString()), roi,
+                channels.get(0).getSlice(roi), params.darkPeaks, numerator, denominator);
+        Roi_Histogram histogram = Histogram_Cache.get(key);
+        if (histogram != null) return histogram;
+
+        ImageProcessor[] ips = new ImageProcessor[n];
+        Pixel_Range[] ranges = new Pixel_Range[n];
+        for (int c = 0; c < n; c++) {
+            ips[c] = channels.get(c).getProcessor(roi);
+            ranges[c] = channels.get(c).range(ips[c]);
         }
-        return sum/ numberOfPixelsAboveThreshold;
+        histogram = new Roi_Histogram(ips, ranges, roi, params.darkPeaks, numerator, denominator);
+        Histogram_Cache.put(key, histogram);
+        return histogram;
     }
 
-    private double roiMeanRatio(ArrayList<ImagePlus> channels, String majorTitle, int threshold) {
-        if(channels.size() < 2) return 0;
-        ImagePlus[] impArray = new ImagePlus[channels.size()];
-        channels.toArray(impArray);
-        ImagePlus minor_imp;
-        ImagePlus major_imp;
-        if( impArray[0].getTitle().equalsIgnoreCase(majorTitle)) {
-            major_imp = impArray[0];
-            minor_imp = impArray[1];
-        } else {
-            major_imp = impArray[1];
-            minor_imp = impArray[0];
+    // ratio statistics of all channels in one pass over the ROI, for bit depths without a joint histogram
+    private Roi_Statistics ratioStatistics(ArrayList<Channel_View> channels, Roi roi) {
+        int n = channels.size();
+        ImageProcessor[] ips = new ImageProcessor[n];
+        Pixel_Range[] ranges = new Pixel_Range[n];
+        double[] min = new double[n];
+        double[] max = new double[n];
+        double[] ratioMin = new double[n];
+        double[] ratioMax = new double[n];
+        int[] levels = ratioLevels(channels);
+
+        for (int c = 0; c < n; c++) {
+            ips[c] = channels.get(c).getProcessor(roi);
+            Pixel_Range range = ranges[c] = channels.get(c).range(ips[c]);
+            min[c] = range.min;
+            max[c] = range.max;
+            ratioMin[c] = range.toPixel(levels[0]);
+            ratioMax[c] = range.toPixel(levels[1]);
         }
+        return new Roi_Statistics(ips, ranges, roi, min, max, ratioMin, ratioMax);
+    }
 
-        Roi roi = major_imp.getRoi();
-        if (roi!=null && !roi.isArea()) roi = null;
-        ImageProcessor minor_ip = minor_imp.getProcessor();
-        ImageProcessor major_ip = major_imp.getProcessor();
-        ImageProcessor mask = roi!=null ? roi.getMask() : null;
-        Rectangle r = roi!=null ? roi.getBounds() : new Rectangle(0,0,minor_ip.getWidth(),minor_ip.getHeight());
-
-        double sum = 0;
-        int count = 0;
-
-        int minThreshold = 1;
-        int maxThreshold = 255;
-
-        if(main.darkPeaks) maxThreshold -= threshold;
-        else if(threshold > 0) minThreshold = threshold;
-
-        for (int y=0; y<r.height; y++) {
-            for (int x=0; x<r.width; x++) {
-                if (mask==null||mask.getPixel(x,y)!=0) {
+    // levels 1..255 of the ratio, the threshold of the last channel is used for both channels
+    private int[] ratioLevels(ArrayList<Channel_View> channels) {
+        int ratioThreshold = params.getThreshold(channels.get(channels.size() - 1).getTitle().toLowerCase());
+        // the lower threshold is at least 1 to keep zeros out of the ratio
+        int minLevel = 1;
+        int maxLevel = 255;
+        if(params.darkPeaks) maxLevel -= ratioThreshold;
+        else if(ratioThreshold > 0) minLevel = ratioThreshold;
+        return new int[]{minLevel, maxLevel};
+    }
 
-                    float value1 = minor_ip.getPixelValue(x+r.x, y+r.y);
-                    float value2 = major_ip.getPixelValue(x+r.x, y+r.y);
+    // {minor, major} channel of the ratio mean, null with less than two channels
+    private int[] ratioPair(ArrayList<Channel_View> channels) {
+        if(channels.size() < 2) return null;
+        if( channels.get(0).getTitle().equalsIgnoreCase(major)) return new int[]{1, 0};
+        return new int[]{0, 1};
+    }
 
-                    if (value1 >= minThreshold && value1 <= maxThreshold && value2 >= minThreshold && value2 <= maxThreshold) {
-                        sum += value1 / value2;
-                        count++;
-                    }
-                }
-            }
+    private double roiMeanRatio(Roi_Histogram histogram, ArrayList<Channel_View> channels, Roi roi) {
+        int[] pair = ratioPair(channels);
+        if(pair == null) return 0;
+        if (histogram.hasRatio(pair[0], pair[1])) {
+            int[] levels = ratioLevels(channels);
+            return histogram.ratioMean(levels[0], levels[1]);
         }
-        return sum/count;
+        return ratioStatistics(channels, roi).ratioMean(pair[0], pair[1]);
     }
 
-    private void countDistanceFunction(String title, ArrayList<Point> peaks, Roi roi) {
-        int quantification = main.quantification;
+    private void countDistanceFunction(Channel_View channel, Peak_List peaks, Roi roi) {
+        int quantification = params.quantification;
+        String title = channel.getTitle();
 
-        // find centroid from roi
-        ImageStatistics stats = roi.getImage().getStatistics(Measurements.CENTROID);
+        // find centroid from roi on the channel processor, ROI Manager ROIs are not attached to an image
+        ImageProcessor ip = channel.getProcessor(roi);
+        ip.setRoi(roi);
+        ImageStatistics stats = ImageStatistics.getStatistics(ip, Measurements.CENTROID, null);
+        ip.resetRoi();
         double xCentroid = stats.xCentroid;
         double yCentroid = stats.yCentroid;
-        Calibration calibration = roi.getImage().getCalibration();
-        if (calibration.scaled()) {
-            xCentroid = calibration.getRawX(xCentroid);
-            yCentroid = calibration.getRawY(yCentroid);
-        }
 
         // measure distances from each point to centroid
         int height = (int) (roi.getBounds().getHeight());
@@ -302,9 +599,9 @@ class Table_Analyzer {
         double[] count = new double[bounds / quantification];
 
         int maxDistance = 0;
-        for (Point p : peaks) {
-            double a2 = (xCentroid - p.x) *(xCentroid - p.x);
-            double b2 = (yCentroid - p.y) * (yCentroid - p.y);
+        for (int i = 0; i < peaks.size(); i++) {
+            double a2 = (xCentroid - peaks.getX(i)) *(xCentroid - peaks.getX(i));
+            double b2 = (yCentroid - peaks.getY(i)) * (yCentroid - peaks.getY(i));
             int distance = (int) Math.round(Math.sqrt(a2 + b2));
             distance = distance / quantification;
             count[distance]++;